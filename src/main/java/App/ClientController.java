@@ -1,7 +1,7 @@
 package App;
 
 import Blockchain.*;
-import Blockchain.Batch.TimedAdaptiveBatching;
+import Blockchain.Batch.LatencyTargetBatching;
 import Blockchain.Transaction.NewAccountTx;
 import Blockchain.Transaction.Transaction;
 import org.springframework.web.bind.annotation.*;
@@ -11,13 +11,16 @@ import java.time.Duration;
 
 @RestController
 public class ClientController {
-    private final  Server server;
+    private final  Server                server;
+    private final  LatencyTargetBatching batching = new LatencyTargetBatching(Duration.ofSeconds(1),
+                                                                              Duration.ofMillis(10),
+                                                                              Duration.ofMillis(500));
 
     ClientController(int id, String host) throws IOException {
         System.out.println("Client controller is starting:" + id + " host: " + host);
         server = new ServerBuilder().setId(id)
                                     .setServerAddress(SocketAddressFactory.from(host, 40000 + id))
-                                    .setBatchingStrategy(new TimedAdaptiveBatching(Duration.ofMillis(500), 20))
+                                    .setBatchingStrategy(batching)
                                     .createServer()
                                     .start();
     }
@@ -59,6 +62,16 @@ public class ClientController {
         server.deleteTxStatus(TxId.from(txId));
     }
 
+    @GetMapping("/batching")
+    LatencyTargetBatching.ControllerState getBatchingState() {
+        return batching.getControllerState();
+    }
+
+    @GetMapping("/pipeline")
+    PipelineMetrics getPipelineMetrics() {
+        return server.getApplyMetrics();
+    }
+
     @GetMapping("/txs/{txId}")
     TxStatus getTxStatus(@PathVariable String txId) {
         Transaction.Result status = server.getTxStatus(TxId.from(txId));
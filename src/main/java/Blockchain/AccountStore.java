@@ -0,0 +1,17 @@
+package Blockchain;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Account id -> balance storage behind {@link Ledger.State}.
+ */
+interface AccountStore extends Balances {
+    int size();
+
+    void forEach(IntConsumer action);
+
+    /**
+     * @return an independent copy, later writes to either one are not visible in the other
+     */
+    AccountStore fork();
+}
@@ -0,0 +1,228 @@
+package Blockchain;
+
+import ServerCommunication.EncodedBlock;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Applies the chained blocks off the ordering thread, in three stages:
+ * <ol>
+ * <li>{@link #submit} only queues the chain index and never blocks the ordering thread, which also
+ * handles membership and sessions. Once {@code MAX_QUEUED} blocks are waiting the ordering service
+ * is asked to stop reading new ones, see {@link #deferWhileBackedUp} (backpressure);</li>
+ * <li>a dispatcher starts fetching and decoding the next blocks in parallel, at most
+ * {@code depth} of them ahead of the applier, and waits when that many are in flight
+ * (backpressure);</li>
+ * <li>a single applier applies them strictly in chain order. A block that can't be brought is
+ * fetched again, with a growing delay, so the applier never skips or gives up on one.</li>
+ * </ol>
+ */
+class ApplyPipeline {
+    interface Applier {
+        void apply(int idx, @NotNull Block block);
+    }
+
+    private static class Chained {
+        final int                idx;
+        final long               blockKey;
+        CompletableFuture<Block> decoded;
+
+        Chained(int idx, long blockKey) {
+            this.idx = idx;
+            this.blockKey = blockKey;
+        }
+    }
+
+    private static final Chained STOP             = new Chained(-1, 0);
+    private static final int     MAX_QUEUED       = 1 << 16;
+    private static final int     RESUME_QUEUED    = MAX_QUEUED / 2;
+    private static final long    RETRY_MILLIS     = 100;
+    private static final long    MAX_RETRY_MILLIS = 5_000;
+
+    private final LongFunction<CompletableFuture<EncodedBlock>> fetch;
+    private final Executor                                      decoders;
+    private final Applier                                       applier;
+
+    private final BlockingQueue<Chained> chained = new LinkedBlockingQueue<>(); // MAX_QUEUED, past the reads in flight
+    private final BlockingQueue<Chained> decoding; // bounded, in chain order
+
+    private final    List<Runnable> deferred = new ArrayList<>(); // guarded by itself
+    private volatile boolean        backedUp = false;
+
+    private final AtomicLong applied     = new AtomicLong(0);
+    private final AtomicLong applyNanos  = new AtomicLong(0);
+    private final AtomicLong stalls      = new AtomicLong(0); // applier waited for a block
+    private volatile int     lastApplied = -1;
+
+    private final Thread dispatcherThread = new Thread(this::dispatch, "apply-dispatcher");
+    private final Thread applierThread    = new Thread(this::applyInOrder, "applier");
+
+    /**
+     * @param fetch    brings an encoded block by {@link BlockId#toLong()}, from the pending ones or
+     *                 from the peers
+     * @param decoders where blocks are decoded
+     * @param applier  called for each block, from a single thread and in chain order
+     * @param depth    how many blocks may be fetched and decoded ahead of the applier
+     */
+    ApplyPipeline(@NotNull LongFunction<CompletableFuture<EncodedBlock>> fetch,
+                  @NotNull Executor decoders,
+                  @NotNull Applier applier,
+                  int depth) {
+        this.fetch = fetch;
+        this.decoders = decoders;
+        this.applier = applier;
+        decoding = new ArrayBlockingQueue<>(depth);
+
+        dispatcherThread.setDaemon(true);
+        applierThread.setDaemon(true);
+    }
+
+    private static void LOG(Object msg) {
+        System.out.println("[APPLY] " + msg);
+    }
+
+    ApplyPipeline start() {
+        dispatcherThread.start();
+        applierThread.start();
+        return this;
+    }
+
+    void shutdown() {
+        chained.clear();
+        chained.add(STOP);
+        dispatcherThread.interrupt();
+        applierThread.interrupt();
+    }
+
+    /**
+     * Forgets the blocks queued so far below idx, their state was transferred instead. Only before
+     * {@link #start}.
+     *
+     * @param dropped called with the {@link BlockId#toLong()} of each forgotten block
+     */
+    void dropBelow(int idx, LongConsumer dropped) {
+        chained.removeIf(next -> {
+            if (next.idx >= idx) return false;
+            dropped.accept(next.blockKey);
+            return true;
+        });
+    }
+
+    /**
+     * Queues the block chained at idx, never waits.
+     *
+     * @param blockKey {@link BlockId#toLong()}
+     */
+    void submit(long blockKey, int idx) {
+        chained.add(new Chained(idx, blockKey));
+    }
+
+    /**
+     * @param resume called, from the dispatcher thread, once half of the queued blocks were dispatched
+     * @return whether {@code MAX_QUEUED} blocks are queued, new ones should then not be read until
+     * resume is called
+     */
+    boolean deferWhileBackedUp(Runnable resume) {
+        synchronized (deferred) {
+            if (chained.size() < MAX_QUEUED) return false;
+
+            deferred.add(resume);
+            backedUp = true;
+            return true;
+        }
+    }
+
+    private void resumeIfDrained() {
+        if (!backedUp || chained.size() > RESUME_QUEUED) return;
+
+        List<Runnable> resumes;
+        synchronized (deferred) {
+            resumes = new ArrayList<>(deferred);
+            deferred.clear();
+            backedUp = false;
+        }
+        LOG("caught up to " + chained.size() + " queued blocks, resuming " + resumes.size() + " readers");
+        for (Runnable resume : resumes) {
+            try {
+                resume.run();
+            } catch (RuntimeException e) {
+                LOG("can't resume a reader: " + e); // e.g. closed meanwhile
+            }
+        }
+    }
+
+    PipelineMetrics getMetrics() {
+        long n = applied.get();
+        return new PipelineMetrics(chained.size(),
+                                   decoding.size(),
+                                   n,
+                                   lastApplied,
+                                   stalls.get(),
+                                   n == 0 ? 0 : applyNanos.get() / n);
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Chained next = chained.take();
+                if (next == STOP) break;
+                resumeIfDrained();
+
+                next.decoded = bring(next.blockKey);
+                decoding.put(next); // blocks while the applier is depth blocks behind
+            }
+        } catch (InterruptedException ignored) {
+        }
+        decoding.clear();
+        decoding.offer(STOP);
+    }
+
+    private void applyInOrder() {
+        try {
+            while (true) {
+                Chained next = decoding.take();
+                if (next == STOP) break;
+
+                if (!next.decoded.isDone()) stalls.incrementAndGet();
+                Block block = awaitDecoded(next);
+
+                long start = System.nanoTime();
+                applier.apply(next.idx, block);
+                applyNanos.addAndGet(System.nanoTime() - start);
+                applied.incrementAndGet();
+                lastApplied = next.idx;
+            }
+        } catch (InterruptedException | CancellationException ignored) {
+        }
+    }
+
+    private CompletableFuture<Block> bring(long blockKey) {
+        return fetch.apply(blockKey).thenApplyAsync(Block::from, decoders);
+    }
+
+    // the next block must be applied before any other, so it's brought again until it is
+    private Block awaitDecoded(Chained next) throws InterruptedException {
+        for (long delay = RETRY_MILLIS; ; delay = Math.min(2 * delay, MAX_RETRY_MILLIS)) {
+            try {
+                return next.decoded.join();
+            } catch (CompletionException e) {
+                LOG("can't bring " + BlockId.fromLong(next.blockKey) + ", retrying in " + delay + "ms: "
+                            + e.getCause());
+                Thread.sleep(delay);
+                next.decoded = bring(next.blockKey);
+            }
+        }
+    }
+}
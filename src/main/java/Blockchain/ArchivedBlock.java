@@ -0,0 +1,144 @@
+package Blockchain;
+
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import ServerCommunication.EncodedBlock;
+import ServerCommunication.StoredBlock;
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An applied block as kept in the chain: its encoded txs, a bit per committed tx and the accounts
+ * created by its {@link NewAccountTx}s. The txs are only decoded again to be applied, e.g. on a
+ * restart, so a tx costs a few bytes instead of a {@link Transaction} and its result.
+ */
+class ArchivedBlock {
+    private final BlockId      blockId;
+    private final EncodedBlock encoded;
+    private final int          txCount;
+    private final BitSet       committed;
+    private final int[]        newAccountTxs; // tx indices, ascending
+    private final int[]        newAccountIds; // the account created by each of them
+
+    private ArchivedBlock(BlockId blockId,
+                          EncodedBlock encoded,
+                          int txCount,
+                          BitSet committed,
+                          int[] newAccountTxs,
+                          int[] newAccountIds) {
+        this.blockId = blockId;
+        this.encoded = encoded;
+        this.txCount = txCount;
+        this.committed = committed;
+        this.newAccountTxs = newAccountTxs;
+        this.newAccountIds = newAccountIds;
+    }
+
+    /**
+     * @param results of the txs of the block, in order
+     */
+    @NotNull
+    @Contract("_, _, _ -> new")
+    static ArchivedBlock from(@NotNull BlockId blockId,
+                              @NotNull EncodedBlock encoded,
+                              @NotNull Transaction.Result[] results) {
+        var committed     = new BitSet(results.length);
+        var newAccountTxs = new int[results.length];
+        var newAccountIds = new int[results.length];
+        int newAccounts   = 0;
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isCommitted()) committed.set(i);
+            if (results[i] instanceof NewAccountTx.Result) {
+                newAccountTxs[newAccounts] = i;
+                newAccountIds[newAccounts] = ((NewAccountTx.Result) results[i]).getNewAccount().getId();
+                ++newAccounts;
+            }
+        }
+        return new ArchivedBlock(blockId,
+                                 encoded,
+                                 results.length,
+                                 committed,
+                                 Arrays.copyOf(newAccountTxs, newAccounts),
+                                 Arrays.copyOf(newAccountIds, newAccounts));
+    }
+
+    @NotNull
+    @Contract("_ -> new")
+    static ArchivedBlock fromStored(@NotNull StoredBlock stored) {
+        int n = stored.getNewAccountTxsCount();
+        var newAccountTxs = new int[n];
+        var newAccountIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            newAccountTxs[i] = stored.getNewAccountTxs(i);
+            newAccountIds[i] = stored.getNewAccounts(i);
+        }
+        return new ArchivedBlock(BlockId.from(stored.getBlock().getId()),
+                                 stored.getBlock(),
+                                 stored.getTxCount(),
+                                 BitSet.valueOf(stored.getCommitted().asReadOnlyByteBuffer()),
+                                 newAccountTxs,
+                                 newAccountIds);
+    }
+
+    StoredBlock toStored() {
+        var builder = StoredBlock.newBuilder()
+                                 .setBlock(encoded)
+                                 .setTxCount(txCount)
+                                 .setCommitted(ByteString.copyFrom(committed.toByteArray()));
+        for (int i = 0; i < newAccountTxs.length; i++) {
+            builder.addNewAccountTxs(newAccountTxs[i]).addNewAccounts(newAccountIds[i]);
+        }
+        return builder.build();
+    }
+
+    BlockId getId() {
+        return blockId;
+    }
+
+    EncodedBlock getEncoded() {
+        return encoded;
+    }
+
+    int getTxCount() {
+        return txCount;
+    }
+
+    BitSet getCommitted() {
+        return committed;
+    }
+
+    // not to be modified
+    int[] getNewAccountTxs() {
+        return newAccountTxs;
+    }
+
+    // not to be modified
+    int[] getNewAccountIds() {
+        return newAccountIds;
+    }
+
+    /**
+     * @return null if there is no such tx
+     */
+    @Nullable
+    Transaction.Result getResult(int txIdx) {
+        if (txIdx < 0 || txIdx >= txCount) return null;
+
+        int newAccount = Arrays.binarySearch(newAccountTxs, txIdx);
+        return newAccount >= 0 ? NewAccountTx.Result.of(Account.from(newAccountIds[newAccount]))
+                               : Transaction.Result.of(committed.get(txIdx));
+    }
+
+    /**
+     * @return the block decoded again, without results until applied
+     */
+    Block decode() {
+        return Block.from(encoded);
+    }
+}
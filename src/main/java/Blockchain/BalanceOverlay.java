@@ -0,0 +1,46 @@
+package Blockchain;
+
+/**
+ * Buffers the writes done on top of a read-only base store, to be merged into it later.
+ * Several overlays may read the same base concurrently.
+ */
+class BalanceOverlay implements Balances {
+    private final Balances        base;
+    private final IntBalanceTable written = new IntBalanceTable(false);
+    private final IntBalanceTable deleted = new IntBalanceTable(false); // used as a set
+
+    BalanceOverlay(Balances base) {
+        this.base = base;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return written.contains(id) || (!deleted.contains(id) && base.contains(id));
+    }
+
+    @Override
+    public int get(int id) {
+        return written.contains(id) ? written.get(id) : base.get(id);
+    }
+
+    @Override
+    public boolean put(int id, int balance) {
+        boolean created = !contains(id);
+        deleted.remove(id);
+        written.put(id, balance);
+        return created;
+    }
+
+    @Override
+    public boolean remove(int id) {
+        if (!contains(id)) return false;
+        written.remove(id);
+        deleted.put(id, 0);
+        return true;
+    }
+
+    void mergeInto(Balances target) {
+        deleted.forEach(target::remove);
+        written.forEach(id -> target.put(id, written.get(id)));
+    }
+}
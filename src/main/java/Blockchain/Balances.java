@@ -0,0 +1,25 @@
+package Blockchain;
+
+/**
+ * Account id -> balance, what a transaction reads and writes through {@link Ledger.TxState}.
+ */
+interface Balances {
+    boolean contains(int id);
+
+    /**
+     * @return the balance of {@code id}, only meaningful if {@link #contains(int)}
+     */
+    int get(int id);
+
+    /**
+     * Sets the balance of {@code id}, creating the account if needed.
+     *
+     * @return true if the account was created
+     */
+    boolean put(int id, int balance);
+
+    /**
+     * @return true if the account existed
+     */
+    boolean remove(int id);
+}
@@ -1,7 +1,14 @@
 package Blockchain.Batch;
 
+import java.time.Duration;
+
 public interface BatcherProxy {
     void batch() throws InterruptedException;
 
     void interrupted();
+
+    /**
+     * @return how long ago the first tx of the block being built was appended, zero while it's empty
+     */
+    Duration openBlockAge();
 }
@@ -1,11 +1,21 @@
 package Blockchain.Batch;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
+import java.time.Duration;
 
 public abstract class BatchingStrategy {
-    private BatcherProxy batcherProxy;
+    private       BatcherProxy      batcherProxy;
+    private final BlockSizeListener blockSizeListener = this::onBlockGrown;
+
+    public interface BlockSizeListener {
+        /**
+         * @return whether the block is full, later appends then wait until it's sealed
+         */
+        boolean onBlockGrown(int txCount, long byteSize);
+    }
 
     void batch() throws InterruptedException {
         batcherProxy.batch();
@@ -15,12 +25,46 @@ public abstract class BatchingStrategy {
         batcherProxy.interrupted();
     }
 
+    Duration openBlockAge() {
+        return batcherProxy.openBlockAge();
+    }
+
     void onRequestBegin() {
     }
 
     void onRequestEnd() {
     }
 
+    /**
+     * Called by the block builder after each append, with the size of the block being built, if
+     * {@link #tracksBlockSize()}.
+     *
+     * @return whether the block is full, later appends then wait until it's sealed
+     */
+    boolean onBlockGrown(int txCount, long byteSize) {
+        return false;
+    }
+
+    boolean tracksBlockSize() {
+        return false;
+    }
+
+    /**
+     * @return what the block builder reports the size of the block being built to, null if this
+     * strategy doesn't use it: appends then skip computing the tx sizes
+     */
+    @Nullable
+    public final BlockSizeListener blockSizeListener() {
+        return tracksBlockSize() ? blockSizeListener : null;
+    }
+
+    /**
+     * Called once a block sealed by this server is chained and applied, with the time since its
+     * first transaction was appended.
+     */
+    public void onBlockCommitted(int txCount, Duration latency) {
+    }
+
     public void start(BatcherProxy batcherProxy) {
         this.batcherProxy = batcherProxy;
     }
@@ -0,0 +1,186 @@
+package Blockchain.Batch;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Timed batching whose window follows the measured commit latency (first append -> block chained):
+ * AIMD on the window to keep the p99 latency under the target. Bigger windows mean fewer blocks
+ * to replicate and order, so the window grows as long as the target is met and is halved as soon
+ * as it is missed.
+ */
+public class LatencyTargetBatching extends BatchingStrategy {
+    private static final int    SAMPLES        = 128;
+    private static final int    ADJUST_EVERY   = 8;
+    private static final double GROW_BELOW     = 0.8;
+    private static final int    INCREASE_STEPS = 20;
+
+    private final Duration target;
+    private final Duration minWindow;
+    private final Duration maxWindow;
+    private final long     increaseNanos;
+    private final Thread   appender;
+
+    private final long[] samples = new long[SAMPLES]; // ring buffer of latencies, in nanos
+    private       int    nSamples;
+    private       int    sinceAdjust;
+
+    private volatile ControllerState state;
+
+    public LatencyTargetBatching(Duration target, Duration minWindow, Duration maxWindow) {
+        this.target = target;
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        increaseNanos = Math.max(1, (maxWindow.toNanos() - minWindow.toNanos()) / INCREASE_STEPS);
+        state = new ControllerState(minWindow, Duration.ZERO, target, 0, 0, "initial window");
+
+        appender = new Thread(() -> {
+            while (!Thread.interrupted()) {
+                try {
+                    Thread.sleep(state.window().toMillis());
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+
+                try {
+                    batch();
+                } catch (InterruptedException e) {
+                    System.err.println("batching was interrupted");
+                    e.printStackTrace();
+                    interrupted();
+                    break;
+                }
+            }
+        });
+    }
+
+    private static void LOG(Object msg) {
+        System.out.println("[BATCHING] " + msg);
+    }
+
+    @Override
+    public synchronized void onBlockCommitted(int txCount, Duration latency) {
+        samples[nSamples++ % SAMPLES] = latency.toNanos();
+        if (++sinceAdjust < ADJUST_EVERY) return;
+        sinceAdjust = 0;
+
+        long[] window = Arrays.copyOf(samples, Math.min(nSamples, SAMPLES));
+        Arrays.sort(window);
+        var p99 = Duration.ofNanos(window[(int) Math.ceil(window.length * 0.99) - 1]);
+
+        ControllerState current = state;
+        Duration        next;
+        String          reason;
+        if (p99.compareTo(target) > 0) {
+            next = max(minWindow, current.window().dividedBy(2));
+            reason = "p99 " + p99.toMillis() + "ms above target, halving";
+        } else if (p99.toNanos() < target.toNanos() * GROW_BELOW) {
+            next = min(maxWindow, current.window().plusNanos(increaseNanos));
+            reason = "p99 " + p99.toMillis() + "ms below target, growing";
+        } else {
+            next = current.window();
+            reason = "p99 " + p99.toMillis() + "ms close to target, holding";
+        }
+
+        state = new ControllerState(next,
+                                    p99,
+                                    target,
+                                    window.length,
+                                    current.getAdjustments() + (next.equals(current.window()) ? 0 : 1),
+                                    reason);
+        if (!next.equals(current.window())) {
+            LOG("window " + current.window().toMillis() + "ms -> " + next.toMillis() + "ms: " + reason);
+        }
+    }
+
+    private static Duration max(Duration a, Duration b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    public ControllerState getControllerState() {
+        return state;
+    }
+
+    @Override
+    public void start(BatcherProxy batcherProxy) {
+        super.start(batcherProxy);
+        appender.start();
+    }
+
+    @Override
+    public void shutdown() {
+        appender.interrupt();
+
+        try {
+            appender.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static class ControllerState {
+        private final Duration window;
+        private final Duration p99;
+        private final Duration target;
+        private final int      samples;
+        private final long     adjustments;
+        private final String   lastDecision;
+
+        ControllerState(Duration window,
+                        Duration p99,
+                        Duration target,
+                        int samples,
+                        long adjustments,
+                        String lastDecision) {
+            this.window = window;
+            this.p99 = p99;
+            this.target = target;
+            this.samples = samples;
+            this.adjustments = adjustments;
+            this.lastDecision = lastDecision;
+        }
+
+        Duration window() {
+            return window;
+        }
+
+        public long getWindowMillis() {
+            return window.toMillis();
+        }
+
+        public long getP99Millis() {
+            return p99.toMillis();
+        }
+
+        public long getTargetMillis() {
+            return target.toMillis();
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public long getAdjustments() {
+            return adjustments;
+        }
+
+        public String getLastDecision() {
+            return lastDecision;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[window=%dms, p99=%dms, target=%dms, samples=%d, adjustments=%d] %s",
+                                 window.toMillis(),
+                                 p99.toMillis(),
+                                 target.toMillis(),
+                                 samples,
+                                 adjustments,
+                                 lastDecision);
+        }
+    }
+}
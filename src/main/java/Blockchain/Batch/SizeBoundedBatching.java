@@ -0,0 +1,80 @@
+package Blockchain.Batch;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SizeBoundedBatching extends BatchingStrategy {
+    private final int           maxTxs;
+    private final long          maxBytes;
+    private final Semaphore     sealSignal    = new Semaphore(0);
+    private final AtomicBoolean sealRequested = new AtomicBoolean(false);
+    private final Thread        appender;
+
+    public SizeBoundedBatching(Duration maxDelay, int maxTxs, long maxBytes) {
+        this.maxTxs = maxTxs;
+        this.maxBytes = maxBytes;
+
+        appender = new Thread(() -> {
+            while (!Thread.interrupted()) {
+                boolean full;
+                try {
+                    // until the first tx of the open block waited maxDelay, wakes up early when it's full
+                    var left = maxDelay.minus(openBlockAge());
+                    full = !left.isNegative() && sealSignal.tryAcquire(left.toNanos(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+                if (!full && openBlockAge().compareTo(maxDelay) < 0) {
+                    continue; // empty, or opened meanwhile
+                }
+
+                sealSignal.drainPermits();
+                sealRequested.set(false);
+
+                try {
+                    batch();
+                } catch (InterruptedException e) {
+                    System.err.println("batching was interrupted");
+                    e.printStackTrace();
+                    interrupted();
+                    break;
+                }
+            }
+        });
+    }
+
+    @Override
+    boolean tracksBlockSize() {
+        return true;
+    }
+
+    // a full block takes no more txs until it's sealed, past a few appended at the same time
+    @Override
+    boolean onBlockGrown(int txCount, long byteSize) {
+        if (txCount < maxTxs && byteSize < maxBytes) return false;
+
+        if (sealRequested.compareAndSet(false, true)) {
+            sealSignal.release();
+        }
+        return true;
+    }
+
+    @Override
+    public void start(BatcherProxy batcherProxy) {
+        super.start(batcherProxy);
+        appender.start();
+    }
+
+    @Override
+    public void shutdown() {
+        appender.interrupt();
+
+        try {
+            appender.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
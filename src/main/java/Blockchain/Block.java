@@ -1,17 +1,18 @@
 package Blockchain;
 
 import Blockchain.Transaction.Transaction;
-import ServerCommunication.BlockMsg;
-import ServerCommunication.Tx;
+import ServerCommunication.BlockEncoding;
+import ServerCommunication.EncodedBlock;
+import com.google.protobuf.CodedOutputStream;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -49,6 +50,27 @@ class BlockId {
         return from(txId.getServerId(), txId.getBlockIdx());
     }
 
+    /**
+     * @return the key of the block as a single long, serverId in the high half
+     */
+    public static long toLong(int serverId, int serialNum) {
+        return (long) serverId << 32 | serialNum & 0xFFFFFFFFL;
+    }
+
+    public static long toLong(@NotNull ServerCommunication.BlockId blockIdMsg) {
+        return toLong(blockIdMsg.getServerId(), blockIdMsg.getSerialNumber());
+    }
+
+    public long toLong() {
+        return toLong(serverId, serialNum);
+    }
+
+    @NotNull
+    @Contract("_ -> new")
+    public static BlockId fromLong(long key) {
+        return new BlockId((int) (key >>> 32), (int) key);
+    }
+
     public ServerCommunication.BlockId toBlockIdMsg() {
         return ServerCommunication.BlockId.newBuilder()
                                           .setServerId(serverId)
@@ -58,7 +80,7 @@ class BlockId {
 
     @Override
     public int hashCode() {
-        return Objects.hash(serverId, serialNum);
+        return Long.hashCode(toLong());
     }
 
     public boolean equals(BlockId other) {
@@ -110,27 +132,66 @@ class Block {
         }
     }
 
-    private final BlockId       blockId;
-    private final List<TxEntry> txs;
+    private final BlockId                            blockId;
+    private final List<TxEntry>                      txs;
+    private final long                               openedNanos; // first append, only known by the sealing server
+    private final AtomicReferenceArray<EncodedBlock> encoded      = // by encoding, serialized once then shared
+            new AtomicReferenceArray<>(BlockCodec.SUPPORTED.size());
 
     public BlockId getId() {
         return blockId;
     }
 
     Block(BlockId blockId, @NotNull Stream<Transaction> txs) {
+        this(blockId, txs, 0);
+    }
+
+    Block(BlockId blockId, @NotNull Stream<Transaction> txs, long openedNanos) {
         this.blockId = blockId;
         this.txs = txs.map(TxEntry::new).collect(Collectors.toUnmodifiableList());
+        this.openedNanos = openedNanos;
+    }
+
+    int size() {
+        return txs.size();
+    }
+
+    long getOpenedNanos() {
+        return openedNanos;
     }
 
     @NotNull
     @Contract("_ -> new")
-    static Block from(@NotNull BlockMsg blockMsg) {
-        return new Block(BlockId.from(blockMsg.getId()),
-                         blockMsg.getTxsList().stream().map(Transaction::from));
+    static Block from(@NotNull EncodedBlock encoded) {
+        var block = new Block(BlockId.from(encoded.getId()), BlockCodec.decode(encoded).stream());
+        block.encoded.set(encoded.getEncodingValue(), encoded);
+        return block;
+    }
+
+    /**
+     * @return the compact form of the block, once applied
+     */
+    ArchivedBlock archive() {
+        return ArchivedBlock.from(blockId,
+                                  archivedEncoding(),
+                                  txs.stream().map(TxEntry::getResult).toArray(Transaction.Result[]::new));
+    }
+
+    // the most compact encoding we have already, they all decode to the same txs
+    private EncodedBlock archivedEncoding() {
+        for (int i = encoded.length() - 1; i >= 0; i--) {
+            if (encoded.get(i) != null) return encoded.get(i);
+        }
+        return encode(BlockEncoding.COLUMNAR);
     }
 
-    void applyTo(Ledger.State state) {
-        txs.forEach(entry -> entry.result = entry.tx.process(state));
+    void applyTo(Ledger.State state, BlockExecutor executor) {
+        var results = executor.execute(txs.stream()
+                                          .map(TxEntry::getTx)
+                                          .collect(Collectors.toList()), state);
+        for (int i = 0; i < results.length; i++) {
+            txs.get(i).result = results[i];
+        }
     }
 
     Map<TxId, Transaction.Result> getResults() {
@@ -147,15 +208,15 @@ class Block {
         return txs.get(txId.getTxIdx()).getResult();
     }
 
-    BlockMsg toBlockMsg() {
-        Stream<Tx> txMsgs = txs.stream()
-                               .map(TxEntry::getTx)
-                               .map(Transaction::toTxMsg);
-
-        return BlockMsg.newBuilder()
-                       .setId(blockId.toBlockIdMsg())
-                       .addAllTxs(txMsgs::iterator)
-                       .build();
+    EncodedBlock encode(BlockEncoding encoding) {
+        EncodedBlock result = encoded.get(encoding.getNumber());
+        if (result == null) { // racing encoders produce equal messages, either one is fine
+            result = BlockCodec.encode(blockId,
+                                       txs.stream().map(TxEntry::getTx).collect(Collectors.toList()),
+                                       encoding);
+            encoded.set(encoding.getNumber(), result);
+        }
+        return result;
     }
 
     @Override
@@ -169,44 +230,187 @@ class Block {
     }
 }
 
+/**
+ * Appends are lock-free: a transaction reserves its index in the open block with a single
+ * fetch-and-add and is then stored in that slot, so the block order is the {@link TxId} order.
+ * That index is the only state appenders share, a {@link TxId} is the position of its tx in the
+ * block, everywhere the block is stored or relayed, so it can't be handed out in per-thread
+ * batches without leaving holes. Byte sizes are added to striped counters.
+ * <p>
+ * Sealing swaps in a new epoch (block), closes the old one so late appenders move to the new one,
+ * and waits only for the slots that were already reserved to be filled. Appenders that find the
+ * open block full, or closed by the size listener, wait parked until it's sealed.
+ */
 class BlockBuilder {
-    private       ConcurrentLinkedQueue<Transaction> txs           = new ConcurrentLinkedQueue<>();
-    private final ReadWriteLock                      readWriteLock = new ReentrantReadWriteLock();
+    interface SizeListener {
+        /**
+         * @return whether the block is full, it then takes no more txs until it's sealed
+         */
+        boolean onGrown(int txCount, long byteSize);
+
+        /**
+         * @return false while onGrown would ignore the sizes, appends then don't compute them
+         */
+        default boolean isListening() {
+            return true;
+        }
+    }
 
-    private final int           id;
-    private       int           blockIdx = 0;
-    private       AtomicInteger txIdx    = new AtomicInteger(0);
+    interface SerialListener {
+        /**
+         * Called before a block is opened with blockIdx, i.e. before its txs get their {@link TxId}.
+         */
+        void onOpening(int blockIdx);
+    }
 
-    BlockBuilder(int id) {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 12;
+    private static final int MAX_TXS    = CHUNK_SIZE * MAX_CHUNKS;
+    private static final int CLOSED     = 1 << 30;           // added once full, reservations after it are past MAX_TXS
+    private static final int SEALED     = Integer.MIN_VALUE; // reservations after it are negative
+
+    private static final class Epoch {
+        final int                                                   blockIdx;
+        final AtomicInteger                                         reserved = new AtomicInteger(0);
+        final LongAdder                                             bytes    = new LongAdder();
+        final AtomicReferenceArray<AtomicReferenceArray<Transaction>> chunks   =
+                new AtomicReferenceArray<>(MAX_CHUNKS);
+        volatile long                                               openedNanos;
+        private  boolean                                            sealed   = false; // guarded by this
+        private  int                                                closedAt = -1;    // guarded by this
+
+        Epoch(int blockIdx) {
+            this.blockIdx = blockIdx;
+        }
+
+        synchronized void awaitSealed() {
+            boolean interrupted = false;
+            while (!sealed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // the tx has to go in some block, keep waiting
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        // later appends wait until it's sealed
+        synchronized void close() {
+            while (true) {
+                int reserved = this.reserved.get();
+                if (reserved < 0 || reserved >= CLOSED) return; // sealed, or closed already
+                if (this.reserved.compareAndSet(reserved, reserved + CLOSED)) {
+                    closedAt = Math.min(reserved, MAX_TXS);
+                    return;
+                }
+            }
+        }
+
+        // how many slots were reserved, given the count it was sealed at
+        synchronized int sizeAt(int reserved) {
+            return reserved >= CLOSED ? closedAt : Math.min(reserved, MAX_TXS);
+        }
+
+        synchronized void markSealed() {
+            sealed = true;
+            notifyAll();
+        }
+
+        AtomicReferenceArray<Transaction> chunk(int chunkIdx) {
+            var chunk = chunks.get(chunkIdx);
+            if (chunk == null) {
+                chunks.compareAndSet(chunkIdx, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+                chunk = chunks.get(chunkIdx);
+            }
+            return chunk;
+        }
+    }
+
+    private final    int            id;
+    private final    SizeListener   sizeListener;
+    private final    SerialListener serialListener;
+    private volatile Epoch          current;
+
+    BlockBuilder(int id, SizeListener sizeListener) {
+        this(id, 0, blockIdx -> {}, sizeListener);
+    }
+
+    /**
+     * @param firstBlockIdx the serial number of the first block, past the ones sealed before a restart
+     */
+    BlockBuilder(int id, int firstBlockIdx, SerialListener serialListener, SizeListener sizeListener) {
         this.id = id;
+        this.sizeListener = sizeListener;
+        this.serialListener = serialListener;
+        serialListener.onOpening(firstBlockIdx);
+        current = new Epoch(firstBlockIdx);
     }
 
     boolean isEmpty() {
-        return txs.isEmpty();
+        return current.reserved.get() == 0;
     }
 
-    TxId append(Transaction tx) {
-        try (var ignored = CriticalSection.start(readWriteLock.readLock())) {
-            TxId txId = new TxId(this.id, blockIdx, txIdx.getAndIncrement());
-            txs.add(tx);
-            return txId;
-        }
+    /**
+     * @return how long ago the first tx of the open block was appended, zero while it's empty
+     */
+    Duration openAge() {
+        Epoch epoch  = current;
+        long  opened = epoch.openedNanos;
+        if (epoch.reserved.get() <= 0 || opened == 0) return Duration.ZERO; // or being appended
+        return Duration.ofNanos(System.nanoTime() - opened);
     }
 
-    Block seal() {
-        ConcurrentLinkedQueue<Transaction> newList = new ConcurrentLinkedQueue<>();
-        ConcurrentLinkedQueue<Transaction> oldList;
+    TxId append(Transaction tx) {
+        while (true) {
+            Epoch epoch = current;
+            int   idx   = epoch.reserved.getAndIncrement();
+
+            if (idx < 0) { // sealed meanwhile, the next epoch is already published
+                continue;
+            }
+            if (idx >= MAX_TXS) { // full or closed, wait for it to be sealed
+                epoch.awaitSealed();
+                continue;
+            }
+
+            if (idx == 0) epoch.openedNanos = System.nanoTime();
+            epoch.chunk(idx >>> CHUNK_BITS).set(idx & (CHUNK_SIZE - 1), tx);
 
-        int prevBlockIdx;
+            // as a BlockMsg.txs entry; blocks appended to while not listening report fewer bytes
+            if (sizeListener.isListening()) {
+                epoch.bytes.add(CodedOutputStream.computeMessageSize(1, tx.toTxMsg()));
+                if (sizeListener.onGrown(idx + 1, epoch.bytes.sum())) epoch.close();
+            }
+            return new TxId(this.id, epoch.blockIdx, idx);
+        }
+    }
 
-        try (var ignored = CriticalSection.start(readWriteLock.writeLock())) {
-            oldList = txs;
-            txs = newList;
-            prevBlockIdx = blockIdx++;
-            txIdx.set(0);
+    /**
+     * @param minNextBlockIdx the lowest serial number the next block may get, it gets the next one
+     *                        otherwise
+     */
+    synchronized Block seal(int minNextBlockIdx) {
+        Epoch epoch   = current;
+        int   nextIdx = Math.max(epoch.blockIdx + 1, minNextBlockIdx);
+        serialListener.onOpening(nextIdx);
+        current = new Epoch(nextIdx);
+
+        int size = epoch.sizeAt(epoch.reserved.getAndSet(SEALED));
+        epoch.markSealed();
+
+        // every reservation made before the swap gets filled shortly
+        var txs = new ArrayList<Transaction>(size);
+        for (int idx = 0; idx < size; idx++) {
+            AtomicReferenceArray<Transaction> chunk;
+            while ((chunk = epoch.chunks.get(idx >>> CHUNK_BITS)) == null) Thread.onSpinWait();
+
+            Transaction tx;
+            while ((tx = chunk.get(idx & (CHUNK_SIZE - 1))) == null) Thread.onSpinWait();
+            txs.add(tx);
         }
 
-        return new Block(BlockId.from(id, prevBlockIdx), oldList.stream());
+        return new Block(BlockId.from(id, epoch.blockIdx), txs.stream(), epoch.openedNanos);
     }
-
 }
@@ -0,0 +1,209 @@
+package Blockchain;
+
+import Blockchain.Transaction.*;
+import ServerCommunication.*;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block wire encodings, see {@link BlockEncoding}.
+ */
+class BlockCodec {
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    static final List<BlockEncoding> SUPPORTED = List.of(BlockEncoding.PROTO,
+                                                         BlockEncoding.COLUMNAR,
+                                                         BlockEncoding.COLUMNAR_DEFLATE);
+
+    @NotNull
+    static EncodedBlock encode(@NotNull BlockId blockId,
+                               @NotNull List<Transaction> txs,
+                               @NotNull BlockEncoding encoding) {
+        ByteString bytes;
+        switch (encoding) {
+            case COLUMNAR:
+                bytes = toColumnar(blockId, txs).toByteString();
+                break;
+            case COLUMNAR_DEFLATE:
+                bytes = deflate(toColumnar(blockId, txs).toByteArray());
+                break;
+            default:
+                bytes = toBlockMsg(blockId, txs).toByteString();
+        }
+
+        return EncodedBlock.newBuilder()
+                           .setId(blockId.toBlockIdMsg())
+                           .setEncoding(encoding)
+                           .setBlock(bytes)
+                           .build();
+    }
+
+    @NotNull
+    static List<Transaction> decode(@NotNull EncodedBlock encoded) {
+        try {
+            switch (encoded.getEncoding()) {
+                case PROTO:
+                    var txs = new ArrayList<Transaction>();
+                    BlockMsg.parseFrom(encoded.getBlock())
+                            .getTxsList()
+                            .forEach(tx -> txs.add(Transaction.from(tx)));
+                    return txs;
+                case COLUMNAR:
+                    return fromColumnar(ColumnarBlock.parseFrom(encoded.getBlock()));
+                case COLUMNAR_DEFLATE:
+                    return fromColumnar(ColumnarBlock.parseFrom(inflate(encoded.getBlock())));
+                default:
+                    throw new RuntimeException("unknown encoding " + encoded.getEncodingValue());
+            }
+        } catch (InvalidProtocolBufferException | DataFormatException e) {
+            throw new RuntimeException("corrupted block " + BlockId.from(encoded.getId()), e);
+        }
+    }
+
+    /**
+     * A block sent by a peer older than EncodedBlock, as a BlockMsg.
+     */
+    @NotNull
+    static EncodedBlock fromLegacy(@NotNull BlockMsg block) {
+        return EncodedBlock.newBuilder()
+                           .setId(block.getId())
+                           .setEncoding(BlockEncoding.PROTO)
+                           .setBlock(block.toByteString())
+                           .build();
+    }
+
+    /**
+     * @param encoded in PROTO
+     * @return the block for a peer older than EncodedBlock
+     */
+    @NotNull
+    static BlockMsg toLegacy(@NotNull EncodedBlock encoded) throws InvalidProtocolBufferException {
+        return BlockMsg.parseFrom(encoded.getBlock());
+    }
+
+    static BlockMsg toBlockMsg(@NotNull BlockId blockId, @NotNull List<Transaction> txs) {
+        var builder = BlockMsg.newBuilder().setId(blockId.toBlockIdMsg());
+        txs.forEach(tx -> builder.addTxs(tx.toTxMsg()));
+        return builder.build();
+    }
+
+    private static ColumnarBlock toColumnar(@NotNull BlockId blockId, @NotNull List<Transaction> txs) {
+        var    builder     = ColumnarBlock.newBuilder().setId(blockId.toBlockIdMsg());
+        byte[] types       = new byte[txs.size()];
+        int    lastAccount = 0;
+
+        for (int i = 0; i < txs.size(); i++) {
+            Tx tx = txs.get(i).toTxMsg();
+            types[i] = (byte) tx.getTxTypeCase().getNumber();
+
+            switch (tx.getTxTypeCase()) {
+                case CREATE:
+                    break;
+                case DELETE:
+                    builder.addAccounts(tx.getDelete().getAccountId() - lastAccount);
+                    lastAccount = tx.getDelete().getAccountId();
+                    break;
+                case ADDAMOUNT:
+                    builder.addAccounts(tx.getAddAmount().getAccountId() - lastAccount);
+                    lastAccount = tx.getAddAmount().getAccountId();
+                    builder.addAmounts(tx.getAddAmount().getAmount());
+                    break;
+                case TRANSFER:
+                    var transfer = tx.getTransfer();
+                    builder.addAccounts(transfer.getFromId() - lastAccount);
+                    builder.addAccounts(transfer.getToId() - transfer.getFromId());
+                    lastAccount = transfer.getToId();
+                    builder.addAmounts(transfer.getAmount());
+                    break;
+                default:
+                    throw new RuntimeException("can't encode " + tx.getTxTypeCase());
+            }
+        }
+
+        return builder.setTypes(ByteString.copyFrom(types)).build();
+    }
+
+    private static List<Transaction> fromColumnar(@NotNull ColumnarBlock block) throws InvalidProtocolBufferException {
+        try {
+            return readColumns(block);
+        } catch (IndexOutOfBoundsException e) {
+            throw new InvalidProtocolBufferException("fewer accounts or amounts than the tx types need");
+        }
+    }
+
+    private static List<Transaction> readColumns(@NotNull ColumnarBlock block) throws InvalidProtocolBufferException {
+        var txs         = new ArrayList<Transaction>(block.getTypes().size());
+        int account     = 0;
+        int nextAccount = 0;
+        int nextAmount  = 0;
+
+        for (int i = 0; i < block.getTypes().size(); i++) {
+            byte          typeNumber = block.getTypes().byteAt(i);
+            Tx.TxTypeCase type       = Tx.TxTypeCase.forNumber(typeNumber);
+            if (type == null) throw new InvalidProtocolBufferException("unknown tx type " + typeNumber);
+
+            switch (type) {
+                case CREATE:
+                    txs.add(new NewAccountTx());
+                    break;
+                case DELETE:
+                    account += block.getAccounts(nextAccount++);
+                    txs.add(new DeleteAccountTx(Account.from(account)));
+                    break;
+                case ADDAMOUNT:
+                    account += block.getAccounts(nextAccount++);
+                    txs.add(new DepositTx(Account.from(account), block.getAmounts(nextAmount++)));
+                    break;
+                case TRANSFER:
+                    int from = account + block.getAccounts(nextAccount++);
+                    account = from + block.getAccounts(nextAccount++);
+                    txs.add(new TransferTx(Account.from(from),
+                                           Account.from(account),
+                                           block.getAmounts(nextAmount++)));
+                    break;
+                default:
+                    throw new InvalidProtocolBufferException("unexpected tx type " + type);
+            }
+        }
+
+        return txs;
+    }
+
+    private static ByteString deflate(byte[] bytes) {
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        var output   = ByteString.newOutput(bytes.length / 2 + 64);
+        var buffer   = new byte[BUFFER_SIZE];
+
+        deflater.setInput(bytes);
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        return output.toByteString();
+    }
+
+    private static ByteString inflate(ByteString bytes) throws DataFormatException {
+        var inflater = new Inflater();
+        var output   = ByteString.newOutput(bytes.size() * 3);
+        var buffer   = new byte[BUFFER_SIZE];
+
+        inflater.setInput(bytes.toByteArray());
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buffer);
+            if (n == 0 && inflater.needsInput()) throw new DataFormatException("truncated block");
+            output.write(buffer, 0, n);
+        }
+        inflater.end();
+
+        return output.toByteString();
+    }
+}
@@ -0,0 +1,132 @@
+package Blockchain;
+
+import Blockchain.Transaction.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Applies the transactions of a block on a fork-join pool.
+ * <p>
+ * Transactions are grouped by the accounts they access (union-find), so different groups never
+ * touch the same account. Each worker runs whole groups, in block order, on top of its own overlay
+ * of the state, and the overlays are merged back at the end. The results are identical to a
+ * sequential run, new accounts get the ids they would have gotten sequentially.
+ */
+class BlockExecutor {
+    private static final int MIN_PARALLEL_TXS = 512;
+    private static final int TASKS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    BlockExecutor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    Transaction.Result[] execute(List<Transaction> txs, Ledger.State state) {
+        var results = new Transaction.Result[txs.size()];
+
+        if (txs.size() < MIN_PARALLEL_TXS || pool.getParallelism() < 2) {
+            for (int i = 0; i < txs.size(); i++) {
+                results[i] = txs.get(i).process(state);
+            }
+            return results;
+        }
+
+        int   n        = txs.size();
+        int[] parent   = new int[n];
+        int[] newIds   = new int[n];
+        var   accessor = new IntBalanceTable(false); // account -> first tx accessing it
+        int[] nextId   = {state.getLastId()};
+
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+            final int tx = i;
+            txs.get(i).forEachAccessedAccount(() -> newIds[tx] = ++nextId[0], account -> {
+                if (accessor.contains(account)) {
+                    union(parent, tx, accessor.get(account));
+                } else {
+                    accessor.put(account, tx);
+                }
+            });
+        }
+
+        // groups in order of their first transaction, each one in block order
+        int[] groupOf   = new int[n];
+        int[] groupSize = new int[n];
+        int   nGroups   = 0;
+        Arrays.fill(groupOf, -1);
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (groupOf[root] == -1) groupOf[root] = nGroups++;
+            ++groupSize[groupOf[root]];
+        }
+
+        if (nGroups == 1) {
+            for (int i = 0; i < n; i++) {
+                results[i] = txs.get(i).process(state);
+            }
+            return results;
+        }
+
+        // transactions sorted by group, then by block order
+        int[] groupStart = new int[nGroups + 1];
+        for (int g = 0; g < nGroups; g++) {
+            groupStart[g + 1] = groupStart[g] + groupSize[g];
+        }
+        int[] order = new int[n];
+        int[] fill  = Arrays.copyOf(groupStart, nGroups);
+        for (int i = 0; i < n; i++) {
+            order[fill[groupOf[find(parent, i)]]++] = i;
+        }
+
+        // consecutive groups are packed into tasks of similar size
+        int                            target = Math.max(1, n / (pool.getParallelism() * TASKS_PER_THREAD));
+        List<Callable<Ledger.Overlay>> tasks  = new ArrayList<>();
+        for (int g = 0; g < nGroups; ) {
+            int from = groupStart[g];
+            while (g < nGroups && groupStart[g] - from < target) ++g;
+            int to = groupStart[g];
+
+            tasks.add(() -> {
+                Ledger.Overlay overlay = state.overlay();
+                for (int k = from; k < to; k++) {
+                    int i = order[k];
+                    if (newIds[i] != 0) overlay.setLastId(newIds[i] - 1);
+                    results[i] = txs.get(i).process(overlay);
+                }
+                return overlay;
+            });
+        }
+
+        try {
+            for (Future<Ledger.Overlay> overlay : pool.invokeAll(tasks)) {
+                state.merge(overlay.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("failed to apply block", e);
+        }
+        state.setLastId(nextId[0]);
+
+        return results;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+    }
+}
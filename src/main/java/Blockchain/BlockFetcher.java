@@ -0,0 +1,312 @@
+package Blockchain;
+
+import ServerCommunication.EncodedBlock;
+import ServerCommunication.PullBlockReq;
+import ServerCommunication.PullBlockRsp;
+import ServerCommunication.PullBlocksReq;
+import io.grpc.stub.StreamObserver;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Brings blocks that were chained before they reached us.
+ * <p>
+ * A few peers are asked at once and, every {@code hedgeDelay} without an answer, a few more, so a
+ * slow or lagging peer doesn't hold the block back. The first answer (or a push of the block)
+ * completes the fetch.
+ */
+class BlockFetcher {
+    private static final int      FANOUT    = 2;
+    private static final int      MAX_RANGE = 1 << 10; // blocks per pullBlocks
+    private static final int      MAX_HELD  = 4 * MAX_RANGE; // received blocks, past it no prefetching
+    private static final Duration MAX_DELAY = Duration.ofSeconds(1);
+
+    private final Supplier<List<PeerServer>>       peers;
+    private final ConcurrentLongMap<EncodedBlock>  received; // by block key
+    private final Duration                         hedgeDelay;
+    private final AtomicInteger                    prefetching = new AtomicInteger(0);
+
+    // by block key
+    private final ConcurrentLongMap<CompletableFuture<EncodedBlock>> waiters = new ConcurrentLongMap<>();
+    private final ConcurrentLongMap<CompletableFuture<EncodedBlock>> parked  =
+            new ConcurrentLongMap<>(); // no peer to ask, until the membership changes
+    private final ScheduledExecutorService                           timer   =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "block-fetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * @param peers      the peers that may have the blocks
+     * @param received   where blocks received meanwhile are found, fetched blocks are kept there
+     *                   until they are taken
+     * @param hedgeDelay how long to wait for an answer before asking more peers
+     */
+    BlockFetcher(@NotNull Supplier<List<PeerServer>> peers,
+                 @NotNull ConcurrentLongMap<EncodedBlock> received,
+                 @NotNull Duration hedgeDelay) {
+        this.peers = peers;
+        this.received = received;
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    private static void LOG(Object msg) {
+        System.out.println("[FETCHER] " + msg);
+    }
+
+    /**
+     * @return completes with the block once any peer sent it, fetches of the same block are shared
+     */
+    CompletableFuture<EncodedBlock> fetch(@NotNull BlockId blockId) {
+        var created = new CompletableFuture<EncodedBlock>();
+        var fetched = register(blockId.toLong(), created);
+        if (fetched != created || fetched.isDone()) return fetched;
+
+        ask(blockId, created, shuffledPeers(), 0, hedgeDelay);
+        return created;
+    }
+
+    /**
+     * Takes the block out of the received ones, once it's received if it wasn't yet.
+     *
+     * @param blockKey {@link BlockId#toLong()} of a chained block
+     */
+    CompletableFuture<EncodedBlock> take(long blockKey) {
+        EncodedBlock block = received.remove(blockKey);
+        if (block != null) {
+            return CompletableFuture.completedFuture(block);
+        }
+
+        var blockId = BlockId.fromLong(blockKey);
+        LOG("block " + blockId + " wasn't received yet");
+        // it's kept in received before its fetch completes, so it's found here
+        return fetch(blockId).whenComplete((fetched, t) -> received.remove(blockKey));
+    }
+
+    /**
+     * Brings the missing blocks among these with a few range pulls, split between the peers, the
+     * ones they didn't send are then fetched one by one. Only as many as fit in {@code MAX_HELD}
+     * with the blocks already received or being prefetched, the others are fetched once chained.
+     */
+    void prefetch(@NotNull List<ServerCommunication.BlockId> blockIds) {
+        int room    = MAX_HELD - received.size() - prefetching.get();
+        var missing = new ArrayList<ServerCommunication.BlockId>();
+        for (var blockId : blockIds) {
+            if (missing.size() >= room) break;
+
+            long blockKey = BlockId.toLong(blockId);
+            var  created  = new CompletableFuture<EncodedBlock>();
+            if (register(blockKey, created) == created && !created.isDone()) {
+                prefetching.incrementAndGet();
+                created.whenComplete((block, t) -> prefetching.decrementAndGet());
+                missing.add(blockId);
+            }
+        }
+        if (missing.isEmpty()) return;
+
+        var candidates = shuffledPeers();
+        LOG("prefetching " + missing.size() + " blocks from " + candidates.size() + " peers");
+
+        for (int from = 0, i = 0; from < missing.size(); from += MAX_RANGE, ++i) {
+            var range = missing.subList(from, Integer.min(from + MAX_RANGE, missing.size()));
+            if (candidates.isEmpty()) {
+                hedgeRemaining(range);
+                continue;
+            }
+
+            var req = PullBlocksReq.newBuilder()
+                                   .addAllAccepted(BlockCodec.SUPPORTED)
+                                   .addAllIds(range)
+                                   .build();
+            candidates.get(i % candidates.size())
+                      .stub()
+                      .withDeadlineAfter(30, TimeUnit.SECONDS)
+                      .pullBlocks(req, new PullBlocksObserver(range));
+        }
+    }
+
+    // the registered fetch of the block, already completed if it was received
+    private CompletableFuture<EncodedBlock> register(long blockKey, CompletableFuture<EncodedBlock> created) {
+        var fetched = waiters.putIfAbsent(blockKey, created);
+        if (fetched != null) return fetched;
+
+        created.whenComplete((block, t) -> waiters.remove(blockKey, created));
+
+        // it may have been pushed right before we registered
+        var block = received.get(blockKey);
+        if (block != null) created.complete(block);
+        return created;
+    }
+
+    private List<PeerServer> shuffledPeers() {
+        var candidates = new ArrayList<>(peers.get());
+        Collections.shuffle(candidates);
+        return candidates;
+    }
+
+    private void hedgeRemaining(List<ServerCommunication.BlockId> blockIds) {
+        for (var blockId : blockIds) {
+            var fetched = waiters.get(BlockId.toLong(blockId));
+            if (fetched != null && !fetched.isDone()) {
+                ask(BlockId.from(blockId), fetched, shuffledPeers(), 0, hedgeDelay);
+            }
+        }
+    }
+
+    /**
+     * Completes the fetch of a block that was just received some other way.
+     */
+    void offer(long blockKey, @NotNull EncodedBlock block) {
+        var fetched = waiters.get(blockKey);
+        if (fetched != null) complete(blockKey, fetched, block);
+    }
+
+    // keeps the block in received until it's taken, a block nobody waits for anymore was taken already
+    private void complete(long blockKey, CompletableFuture<EncodedBlock> fetched, EncodedBlock block) {
+        if (fetched.isDone()) return;
+
+        boolean kept = received.putIfAbsent(blockKey, block) == null;
+        if (!fetched.complete(block) && kept) {
+            received.remove(blockKey, block); // completed by another answer, which may be taken already
+        }
+    }
+
+    /**
+     * Asks the new peers for the blocks no peer could be asked for.
+     */
+    void onPeersChanged() {
+        parked.forEachKey(blockKey -> {
+            var fetched = parked.get(blockKey);
+            if (fetched != null && parked.remove(blockKey, fetched)) {
+                ask(BlockId.fromLong(blockKey), fetched, shuffledPeers(), 0, hedgeDelay);
+            }
+        });
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+        waiters.forEachKey(blockKey -> {
+            var fetched = waiters.get(blockKey);
+            if (fetched != null) fetched.cancel(false);
+        });
+    }
+
+    // asks the next FANOUT candidates, then hedges once delay passed without an answer
+    private void ask(BlockId blockId,
+                     CompletableFuture<EncodedBlock> fetched,
+                     List<PeerServer> candidates,
+                     int next,
+                     Duration delay) {
+        if (fetched.isDone()) return;
+
+        if (next >= candidates.size()) {
+            // every one was asked and none had it yet, start over and back off
+            candidates = shuffledPeers();
+            next = 0;
+            delay = delay.multipliedBy(2);
+            if (delay.compareTo(MAX_DELAY) > 0) delay = MAX_DELAY;
+        }
+        if (candidates.isEmpty()) {
+            LOG("no peer to ask for " + blockId + ", waiting for one");
+            long blockKey = blockId.toLong();
+            parked.put(blockKey, fetched);
+            fetched.whenComplete((block, t) -> parked.remove(blockKey, fetched));
+            if (!peers.get().isEmpty() && parked.remove(blockKey, fetched)) { // joined meanwhile
+                ask(blockId, fetched, shuffledPeers(), 0, hedgeDelay);
+            }
+            return;
+        }
+
+        LOG("asking " + Integer.min(FANOUT, candidates.size() - next) + " peers for " + blockId);
+
+        var req = PullBlockReq.newBuilder()
+                              .setId(blockId.toBlockIdMsg())
+                              .addAllAccepted(BlockCodec.SUPPORTED)
+                              .build();
+
+        int end = Integer.min(next + FANOUT, candidates.size());
+        for (PeerServer peerServer : candidates.subList(next, end)) {
+            peerServer.stub()
+                      .withDeadlineAfter(5, TimeUnit.SECONDS)
+                      .pullBlock(req, new PullBlockObserver(blockId.toLong(), fetched));
+        }
+
+        final var nextCandidates = candidates;
+        final var nextDelay      = delay;
+        try {
+            timer.schedule(() -> ask(blockId, fetched, nextCandidates, end, nextDelay),
+                           delay.toMillis(),
+                           TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    @Nullable
+    private static EncodedBlock blockOf(PullBlockRsp rsp) {
+        if (!rsp.getSuccess()) return null;
+        if (rsp.hasBlock()) return rsp.getBlock();
+        return rsp.hasLegacyBlock() ? BlockCodec.fromLegacy(rsp.getLegacyBlock()) : null; // an older peer
+    }
+
+    private class PullBlocksObserver implements StreamObserver<PullBlockRsp> {
+        private final List<ServerCommunication.BlockId> range;
+
+        PullBlocksObserver(List<ServerCommunication.BlockId> range) {
+            this.range = range;
+        }
+
+        @Override
+        public void onNext(PullBlockRsp value) {
+            var block = blockOf(value);
+            if (block != null) offer(BlockId.toLong(block.getId()), block);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            hedgeRemaining(range);
+        }
+
+        @Override
+        public void onCompleted() {
+            hedgeRemaining(range); // the peer didn't have them all
+        }
+    }
+
+    private class PullBlockObserver implements StreamObserver<PullBlockRsp> {
+        private final long                            blockKey;
+        private final CompletableFuture<EncodedBlock> fetched;
+
+        PullBlockObserver(long blockKey, CompletableFuture<EncodedBlock> fetched) {
+            this.blockKey = blockKey;
+            this.fetched = fetched;
+        }
+
+        @Override
+        public void onNext(PullBlockRsp value) {
+            var block = blockOf(value);
+            if (block != null) complete(blockKey, fetched, block);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
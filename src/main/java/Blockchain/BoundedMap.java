@@ -7,6 +7,14 @@ class BoundedMap<K, V> extends LinkedHashMap<K, V> {
     private final int maxElements;
 
     BoundedMap(int maxElements) {
+        this(maxElements, false);
+    }
+
+    /**
+     * @param accessOrder evicts the least recently accessed entry instead of the eldest one
+     */
+    BoundedMap(int maxElements, boolean accessOrder) {
+        super(16, 0.75f, accessOrder);
         this.maxElements = maxElements;
     }
 
@@ -0,0 +1,48 @@
+package Blockchain;
+
+import java.util.Optional;
+import java.util.function.LongConsumer;
+
+/**
+ * The chained blocks, archived with the results of their txs, by chain index.
+ */
+interface ChainStore {
+    /**
+     * Adds an applied block at the next chain index.
+     */
+    void append(ArchivedBlock block);
+
+    /**
+     * @return the next chain index
+     */
+    int size();
+
+    /**
+     * @return the chain index of the first block kept, the ones before come from a state snapshot
+     */
+    int firstIdx();
+
+    /**
+     * Only while empty: the first block appended gets chainIdx.
+     */
+    void startAt(int chainIdx);
+
+    /**
+     * @param blockKey {@link BlockId#toLong()}
+     */
+    Optional<ArchivedBlock> find(long blockKey);
+
+    /**
+     * Like {@link #find} without reading the block.
+     */
+    boolean contains(long blockKey);
+
+    ArchivedBlock get(int chainIdx);
+
+    /**
+     * @param action called with the {@link BlockId#toLong()} key of every block kept
+     */
+    void forEachBlockKey(LongConsumer action);
+
+    void close();
+}
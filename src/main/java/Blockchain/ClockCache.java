@@ -0,0 +1,77 @@
+package Blockchain;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded concurrent map evicting by CLOCK (second chance), for read-mostly data.
+ * <p>
+ * Reads and removals are a {@link ConcurrentHashMap} lookup plus, the first time an entry is read
+ * since the hand last passed it, a write of its reference bit: no lock, no reordering of a list.
+ * Insertions are batched and serialized among themselves: the hand sweeps a ring of entries,
+ * clearing reference bits, until it finds one not read since its last pass, which is evicted.
+ */
+class ClockCache<K, V> {
+    private static final class Entry<K, V> {
+        final K          key;
+        final V          value;
+        volatile boolean referenced = false;
+
+        Entry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<K, V>> map;
+
+    // guarded by this
+    private final Entry<K, V>[] ring;
+    private       int           hand = 0;
+
+    @SuppressWarnings("unchecked")
+    ClockCache(int capacity) {
+        map = new ConcurrentHashMap<>(capacity);
+        ring = (Entry<K, V>[]) new Entry[capacity];
+    }
+
+    @Nullable
+    V get(K key) {
+        Entry<K, V> entry = map.get(key);
+        if (entry == null) return null;
+
+        if (!entry.referenced) entry.referenced = true; // written once per pass, no cache line ping-pong
+        return entry.value;
+    }
+
+    @Nullable
+    V remove(K key) {
+        Entry<K, V> entry = map.remove(key);
+        return entry == null ? null : entry.value; // its ring slot is reused by the next sweep
+    }
+
+    synchronized void putAll(Map<? extends K, ? extends V> entries) {
+        entries.forEach(this::put);
+    }
+
+    // guarded by this
+    private void put(K key, V value) {
+        while (true) {
+            Entry<K, V> current = ring[hand];
+            if (current == null || map.get(current.key) != current) break; // free, or removed already
+            if (!current.referenced) {
+                map.remove(current.key, current);
+                break;
+            }
+            current.referenced = false;
+            hand = (hand + 1) % ring.length;
+        }
+
+        var entry = new Entry<K, V>(key, value);
+        ring[hand] = entry;
+        hand = (hand + 1) % ring.length;
+        map.put(key, entry); // a replaced entry's slot is reused like a removed one's
+    }
+}
@@ -0,0 +1,265 @@
+package Blockchain;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Concurrent map from primitive longs, e.g. {@link BlockId#toLong()}: no boxed key, no node per
+ * entry and no allocation on lookups.
+ * <p>
+ * The keys are spread over {@code SEGMENTS} open-addressing (linear probing) tables, each guarded
+ * by a {@link StampedLock}. Lookups are optimistic reads, they only take the read lock if a write
+ * to the same segment raced with them. Writes lock their segment.
+ */
+class ConcurrentLongMap<V> {
+    private static final long EMPTY            = Long.MIN_VALUE; // marks a free slot, not a valid key
+    private static final int  SEGMENT_BITS     = 6;
+    private static final int  SEGMENTS         = 1 << SEGMENT_BITS;
+    private static final int  MIN_CAPACITY     = 16;
+    private static final int  MAX_LOAD_PERCENT = 50;
+
+    private static final class Table {
+        final long[]   keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Segment extends StampedLock {
+        Table table = new Table(MIN_CAPACITY); // replaced, never shrunk, under the write lock
+        int   size  = 0;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    ConcurrentLongMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ h >>> 32;
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    // slot of key, or the free slot where it should be inserted (encoded as -(slot + 1)); a table
+    // read optimistically may be inconsistent, so give up after a full turn
+    private static int find(Table table, long key, long hash) {
+        int mask = table.keys.length - 1;
+        int slot = (int) hash & mask;
+        for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            long stored = table.keys[slot];
+            if (stored == key) return slot;
+            if (stored == EMPTY) return -(slot + 1);
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V valueAt(Table table, int slot) {
+        return slot >= 0 ? (V) table.values[slot] : null;
+    }
+
+    @Nullable
+    V get(long key) {
+        long    hash    = mix(key);
+        Segment segment = segmentOf(hash);
+
+        long stamp = segment.tryOptimisticRead();
+        if (stamp != 0) {
+            Table table = segment.table;
+            V     value = valueAt(table, find(table, key, hash));
+            if (segment.validate(stamp)) return value;
+        }
+
+        stamp = segment.readLock();
+        try {
+            Table table = segment.table;
+            return valueAt(table, find(table, key, hash));
+        } finally {
+            segment.unlockRead(stamp);
+        }
+    }
+
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value, if any
+     */
+    @Nullable
+    V put(long key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * @return the current value, null if value was added
+     */
+    @Nullable
+    V putIfAbsent(long key, V value) {
+        return put(key, value, true);
+    }
+
+    private V put(long key, V value, boolean onlyIfAbsent) {
+        if (key == EMPTY) throw new IllegalArgumentException("invalid key " + key);
+        if (value == null) throw new NullPointerException();
+
+        long    hash    = mix(key);
+        Segment segment = segmentOf(hash);
+        long    stamp   = segment.writeLock();
+        try {
+            Table table = segment.table;
+            int   slot  = find(table, key, hash);
+            if (slot >= 0) {
+                V previous = valueAt(table, slot);
+                if (!onlyIfAbsent) table.values[slot] = value;
+                return previous;
+            }
+
+            slot = -(slot + 1);
+            table.keys[slot] = key;
+            table.values[slot] = value;
+            if (++segment.size * 100 > table.keys.length * MAX_LOAD_PERCENT) {
+                segment.table = resize(table, table.keys.length << 1);
+            }
+            return null;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    private static Table resize(Table old, int newCapacity) {
+        var table = new Table(newCapacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            long key = old.keys[i];
+            if (key == EMPTY) continue;
+
+            int slot = -(find(table, key, mix(key)) + 1);
+            table.keys[slot] = key;
+            table.values[slot] = old.values[i];
+        }
+        return table;
+    }
+
+    /**
+     * @return the removed value, if any
+     */
+    @Nullable
+    V remove(long key) {
+        long    hash    = mix(key);
+        Segment segment = segmentOf(hash);
+        long    stamp   = segment.writeLock();
+        try {
+            return removeLocked(segment, key, hash);
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes key only if it maps to value (by identity).
+     *
+     * @return whether it was removed
+     */
+    boolean remove(long key, V value) {
+        long    hash    = mix(key);
+        Segment segment = segmentOf(hash);
+        long    stamp   = segment.writeLock();
+        try {
+            Table table = segment.table;
+            int   slot  = find(table, key, hash);
+            if (slot < 0 || table.values[slot] != value) return false;
+            removeLocked(segment, key, hash);
+            return true;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    private static <V> V removeLocked(Segment segment, long key, long hash) {
+        Table table = segment.table;
+        int   hole  = find(table, key, hash);
+        if (hole < 0) return null;
+        V removed = valueAt(table, hole);
+
+        // backward shift deletion, keeps probe sequences intact without tombstones
+        int mask = table.keys.length - 1;
+        for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+            long stored = table.keys[slot];
+            if (stored == EMPTY) break;
+
+            int     home    = (int) mix(stored) & mask;
+            boolean movable = hole <= slot ? (home <= hole || home > slot)
+                                           : (home <= hole && home > slot);
+            if (movable) {
+                table.keys[hole] = stored;
+                table.values[hole] = table.values[slot];
+                hole = slot;
+            }
+        }
+        table.keys[hole] = EMPTY;
+        table.values[hole] = null;
+        --segment.size;
+        return removed;
+    }
+
+    /**
+     * Removes the keys matching filter, one segment at a time.
+     */
+    void removeIf(LongPredicate filter) {
+        for (Segment segment : segments) {
+            long stamp = segment.writeLock();
+            try {
+                long[] keys = segment.table.keys.clone(); // removals shift the keys
+                for (long key : keys) {
+                    if (key != EMPTY && filter.test(key)) removeLocked(segment, key, mix(key));
+                }
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Not a snapshot, keys added or removed meanwhile may be missed.
+     */
+    void forEachKey(LongConsumer action) {
+        for (Segment segment : segments) {
+            long[] keys;
+            long   stamp = segment.readLock();
+            try {
+                keys = segment.table.keys.clone();
+            } finally {
+                segment.unlockRead(stamp);
+            }
+            for (long key : keys) {
+                if (key != EMPTY) action.accept(key);
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.readLock();
+            size += segment.size;
+            segment.unlockRead(stamp);
+        }
+        return size;
+    }
+}
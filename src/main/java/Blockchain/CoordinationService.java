@@ -0,0 +1,16 @@
+package Blockchain;
+
+/**
+ * What a {@link Server} relies on besides its peers, see {@link ServerBuilder#setCoordination}.
+ */
+public interface CoordinationService extends OrderingService, MembershipService {
+    /**
+     * Joins, called once the server can talk to its peers.
+     */
+    void start();
+
+    /**
+     * Leaves, the others see this server removed.
+     */
+    void close();
+}
@@ -0,0 +1,125 @@
+package Blockchain;
+
+import ServerCommunication.BlockId;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Ordering and membership for servers running in the same JVM, in place of ZooKeeper.
+ * <p>
+ * The chain is a list in memory, each member is told about it from its own thread, in order, like
+ * a ZooKeeper client is from its event thread. Meant for tests and benchmarks, nothing survives
+ * the JVM.
+ */
+public class InProcessSequencer {
+    private final List<BlockId>            chain   = new ArrayList<>(); // guarded by this
+    private final TreeMap<Integer, Member> members = new TreeMap<>();  // guarded by this
+
+    private static void LOG(Object msg) {
+        System.out.println("[SEQUENCER] " + msg);
+    }
+
+    /**
+     * @return the coordination of a server joining this sequencer, see {@link ServerBuilder#setCoordination}
+     */
+    public Function<Server, CoordinationService> member() {
+        return Member::new;
+    }
+
+    public synchronized int chainSize() {
+        return chain.size();
+    }
+
+    private synchronized List<BlockId> chainFrom(int idx) {
+        return new ArrayList<>(chain.subList(idx, chain.size()));
+    }
+
+    private synchronized List<Member> members() {
+        return new ArrayList<>(members.values());
+    }
+
+    private class Member implements CoordinationService {
+        private final Server          server;
+        private final ExecutorService events;
+        private       int             nextChainIdx = 0; // only from the events thread
+
+        Member(@NotNull Server server) {
+            this.server = server;
+            events = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "sequencer-" + server.getId());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public void start() {
+            synchronized (InProcessSequencer.this) {
+                members.put(server.getId(), this);
+            }
+            LOG("server " + server.getId() + " joined");
+            members().forEach(Member::membershipChanged);
+            events.execute(this::chainNewBlocks);
+        }
+
+        @Override
+        public void close() {
+            synchronized (InProcessSequencer.this) {
+                members.remove(server.getId(), this);
+            }
+            events.shutdown();
+            members().forEach(Member::membershipChanged);
+        }
+
+        @Override
+        public void postBlock(BlockId blockId) {
+            synchronized (InProcessSequencer.this) {
+                chain.add(blockId);
+            }
+            members().forEach(member -> member.events.execute(member::chainNewBlocks));
+        }
+
+        @Override
+        public InetSocketAddress getServerMembershipData(Integer serverId) {
+            Member member;
+            synchronized (InProcessSequencer.this) {
+                member = members.get(serverId);
+            }
+            return member == null ? null : member.server.getServerAddress();
+        }
+
+        private void membershipChanged() {
+            events.execute(() -> {
+                Set<Integer> view;
+                synchronized (InProcessSequencer.this) {
+                    view = members.keySet()
+                                  .stream()
+                                  .filter(id -> id != server.getId())
+                                  .collect(Collectors.toSet());
+                }
+                server.onMembershipChange(view);
+            });
+        }
+
+        private void chainNewBlocks() {
+            if (server.deferChaining(() -> events.execute(this::chainNewBlocks))) return;
+
+            List<BlockId> blockIds = chainFrom(nextChainIdx);
+            if (blockIds.isEmpty()) return;
+
+            server.prefetch(blockIds);
+            for (BlockId blockId : blockIds) {
+                server.onBlockChained(blockId, nextChainIdx++);
+            }
+        }
+    }
+}
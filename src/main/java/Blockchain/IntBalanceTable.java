@@ -0,0 +1,228 @@
+package Blockchain;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Open-addressing (linear probing) account id -> balance table, stored as interleaved
+ * {@code [id, balance]} int pairs in pages, either {@code int[]} or direct (off-heap) buffers.
+ * <p>
+ * No per-account objects and no allocation on lookups or updates, about 16 bytes per account at
+ * the maximal load factor. {@link #fork()} only copies the page references, a page shared with a
+ * fork is copied by whichever table writes to it first: forking a state per block costs the pages
+ * the block touches, not the whole table. Direct pages are cut from slabs of {@code SLAB_PAGES},
+ * shared by a table and its forks: a direct allocation per copied page is slow, counts against
+ * {@code MaxDirectMemorySize} and is only freed by the GC. A slab is freed once none of its pages
+ * is used anymore.
+ */
+class IntBalanceTable implements AccountStore {
+    private static final int EMPTY            = Integer.MIN_VALUE; // marks a free slot
+    private static final int PAGE_BITS        = 9;
+    private static final int PAGE_SLOTS       = 1 << PAGE_BITS; // pairs per page
+    private static final int MIN_CAPACITY     = 1 << 10;
+    private static final int MAX_LOAD_PERCENT = 50;
+    private static final int PAGE_BYTES       = PAGE_SLOTS * 2 * Integer.BYTES;
+    private static final int SLAB_PAGES       = 64;
+
+    private static final class Slabs {
+        private ByteBuffer slab = null; // guarded by this, cut from its position
+
+        synchronized IntBuffer nextPage() {
+            if (slab == null || !slab.hasRemaining()) {
+                slab = ByteBuffer.allocateDirect(SLAB_PAGES * PAGE_BYTES);
+            }
+            int start = slab.position();
+            slab.limit(start + PAGE_BYTES);
+            IntBuffer page = slab.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            slab.limit(slab.capacity()).position(start + PAGE_BYTES);
+            return page;
+        }
+    }
+
+    private final Slabs       slabs; // null on heap
+    private       IntBuffer[] pages;
+    private       boolean[]   owned; // pages not shared with a fork, written in place
+    private       int         capacity; // in pairs, a power of 2
+    private       int         size;
+
+    // EMPTY is a valid account id too, it is kept aside
+    private boolean hasEmptyKey;
+    private int     emptyKeyBalance;
+
+    IntBalanceTable(boolean offHeap) {
+        slabs = offHeap ? new Slabs() : null;
+        allocateEmpty(MIN_CAPACITY);
+    }
+
+    private IntBalanceTable(IntBalanceTable forked) {
+        slabs = forked.slabs;
+        pages = forked.pages.clone();
+        owned = new boolean[pages.length];
+        capacity = forked.capacity;
+        size = forked.size;
+        hasEmptyKey = forked.hasEmptyKey;
+        emptyKeyBalance = forked.emptyKeyBalance;
+    }
+
+    private IntBuffer allocatePage() {
+        return slabs != null ? slabs.nextPage() : IntBuffer.allocate(PAGE_SLOTS * 2);
+    }
+
+    private void allocateEmpty(int newCapacity) {
+        capacity = newCapacity;
+        pages = new IntBuffer[Math.max(1, newCapacity >>> PAGE_BITS)];
+        owned = new boolean[pages.length];
+        Arrays.fill(owned, true);
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = allocatePage();
+            for (int i = 0; i < PAGE_SLOTS; i++) {
+                pages[p].put(i << 1, EMPTY);
+            }
+        }
+    }
+
+    private int key(int slot) {
+        return pages[slot >>> PAGE_BITS].get((slot & (PAGE_SLOTS - 1)) << 1);
+    }
+
+    private int balance(int slot) {
+        return pages[slot >>> PAGE_BITS].get(((slot & (PAGE_SLOTS - 1)) << 1) + 1);
+    }
+
+    private void set(int slot, int key, int balance) {
+        IntBuffer page   = writablePage(slot >>> PAGE_BITS);
+        int       offset = (slot & (PAGE_SLOTS - 1)) << 1;
+        page.put(offset, key);
+        page.put(offset + 1, balance);
+    }
+
+    private IntBuffer writablePage(int p) {
+        if (!owned[p]) {
+            IntBuffer copy = allocatePage();
+            copy.put(pages[p].duplicate().clear()).clear();
+            pages[p] = copy;
+            owned[p] = true;
+        }
+        return pages[p];
+    }
+
+    private int home(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ h >>> 16) & (capacity - 1);
+    }
+
+    // slot of id, or the free slot where it should be inserted (encoded as -(slot + 1))
+    private int find(int id) {
+        for (int slot = home(id); ; slot = (slot + 1) & (capacity - 1)) {
+            int key = key(slot);
+            if (key == id) return slot;
+            if (key == EMPTY) return -(slot + 1);
+        }
+    }
+
+    @Override
+    public boolean contains(int id) {
+        if (id == EMPTY) return hasEmptyKey;
+        return find(id) >= 0;
+    }
+
+    @Override
+    public int get(int id) {
+        if (id == EMPTY) return emptyKeyBalance;
+        int slot = find(id);
+        return slot < 0 ? 0 : balance(slot);
+    }
+
+    @Override
+    public boolean put(int id, int balance) {
+        if (id == EMPTY) {
+            boolean created = !hasEmptyKey;
+            hasEmptyKey = true;
+            emptyKeyBalance = balance;
+            if (created) ++size;
+            return created;
+        }
+
+        int slot = find(id);
+        if (slot >= 0) {
+            set(slot, id, balance);
+            return false;
+        }
+
+        set(-(slot + 1), id, balance);
+        if (++size * 100 > capacity * MAX_LOAD_PERCENT) {
+            resize(capacity << 1);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(int id) {
+        if (id == EMPTY) {
+            boolean existed = hasEmptyKey;
+            hasEmptyKey = false;
+            emptyKeyBalance = 0;
+            if (existed) --size;
+            return existed;
+        }
+
+        int hole = find(id);
+        if (hole < 0) return false;
+
+        // backward shift deletion, keeps probe sequences intact without tombstones
+        int mask = capacity - 1;
+        for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+            int key = key(slot);
+            if (key == EMPTY) break;
+
+            int home = home(key);
+            boolean movable = hole <= slot ? (home <= hole || home > slot)
+                                           : (home <= hole && home > slot);
+            if (movable) {
+                set(hole, key, balance(slot));
+                hole = slot;
+            }
+        }
+        set(hole, EMPTY, 0);
+        --size;
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        IntBuffer[] old         = pages;
+        int         oldCapacity = capacity;
+
+        allocateEmpty(newCapacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            IntBuffer page   = old[i >>> PAGE_BITS];
+            int       offset = (i & (PAGE_SLOTS - 1)) << 1;
+            int       key    = page.get(offset);
+            if (key == EMPTY) continue;
+
+            set(-(find(key) + 1), key, page.get(offset + 1));
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(IntConsumer action) {
+        if (hasEmptyKey) action.accept(EMPTY);
+        for (int i = 0; i < capacity; i++) {
+            int key = key(i);
+            if (key != EMPTY) action.accept(key);
+        }
+    }
+
+    @Override
+    public IntBalanceTable fork() {
+        Arrays.fill(owned, false); // shared from now on, by both tables
+        return new IntBalanceTable(this);
+    }
+}
@@ -4,94 +4,301 @@ import Blockchain.Transaction.Transaction;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicReference;
 
 
 @ThreadSafe
 public
 class Ledger {
-    private final ConcurrentMap<BlockId, Block> chain = new ConcurrentHashMap<>();
-    private final AtomicReference<State>        state = new AtomicReference<>(new State());
+    private final ChainStore             chain;
+    private final AtomicReference<State> state;
+    private final BlockExecutor          executor = new BlockExecutor(ForkJoinPool.commonPool());
+    private final TxStatusIndex          statuses = new TxStatusIndex(); // blocks applied since started
+    @Nullable
+    private final StateSnapshots         snapshots;
+
+    public enum Backend {
+        PERSISTENT,     // structural sharing, O(1) fork
+        TABLE,          // paged int table, fork copies the pages written after it
+        OFF_HEAP_TABLE; // same, in direct buffers
+
+        AccountStore createStore() {
+            switch (this) {
+                case TABLE:
+                    return new IntBalanceTable(false);
+                case OFF_HEAP_TABLE:
+                    return new IntBalanceTable(true);
+                default:
+                    return new PersistentAccountMap();
+            }
+        }
+    }
+
+    Ledger(Backend backend) {
+        this(backend, new MemoryChainStore(), null);
+    }
+
+    /**
+     * The state is rebuilt from the latest snapshot, if any, and by applying again the blocks of
+     * the chain store it doesn't cover.
+     */
+    Ledger(Backend backend, ChainStore chain, @Nullable StateSnapshots snapshots) {
+        this.chain = chain;
+        this.snapshots = snapshots;
+
+        State initial = Optional.ofNullable(snapshots)
+                                .flatMap(s -> s.latest(chain.firstIdx(), chain.size(), backend::createStore))
+                                .orElseGet(() -> new State(backend.createStore(), 0));
+        if (initial.chainSize < chain.firstIdx()) {
+            throw new IllegalStateException("no state snapshot covers the chain before " + chain.firstIdx());
+        }
+        for (int i = initial.chainSize; i < chain.size(); i++) {
+            var archived = chain.get(i);
+            archived.decode().applyTo(initial, executor);
+            statuses.add(archived);
+            ++initial.chainSize;
+        }
+        state = new AtomicReference<>(initial);
+    }
 
     public int chainSize() {
         return chain.size();
     }
 
-    public static class State {
-        private final HashMap<Account, Integer> data;
-        private       int                       lastId;
+    /**
+     * @return the highest serial number of the chained blocks sealed by serverId, -1 if none
+     */
+    int lastSerialOf(int serverId) {
+        int[] last = {-1};
+        chain.forEachBlockKey(blockKey -> {
+            if ((int) (blockKey >>> 32) == serverId) last[0] = Integer.max(last[0], (int) blockKey);
+        });
+        return last[0];
+    }
 
-        private State() {
-            this(new HashMap<>(), 0);
-        }
+    void close() {
+        if (snapshots != null) snapshots.close();
+        chain.close();
+    }
 
-        private State(HashMap<Account, Integer> data, int lastId) {
+    /**
+     * What a transaction sees: the balances and the last allocated account id.
+     */
+    public static class TxState {
+        private final Balances data;
+        private       int      lastId;
+
+        private TxState(Balances data, int lastId) {
             this.data = data;
             this.lastId = lastId;
         }
 
         public boolean add(Account account, int amount) {
             if (amount < 0) return false;
-            return null != data.computeIfPresent(account,
-                                                 (id, currentAmount) ->
-                                                         currentAmount + amount);
+            int id = account.getId();
+            if (!data.contains(id)) return false;
+            data.put(id, data.get(id) + amount);
+            return true;
         }
 
         public boolean subtract(Account from, int amount) {
             if (amount < 0) return false;
+            int id = from.getId();
+            if (!data.contains(id)) return false;
 
-            final boolean[] executed = {false};
-
-            data.computeIfPresent(from, (id, currentAmount) -> {
-                var newAmount = currentAmount - amount;
-                if (newAmount < 0) return currentAmount;
-                executed[0] = true;
-                return newAmount;
-            });
-
-            return executed[0];
+            var newAmount = data.get(id) - amount;
+            if (newAmount < 0) return false;
+            data.put(id, newAmount);
+            return true;
         }
 
         public int allocateId() {
             return ++lastId;
         }
 
-        public Map<Account, Integer> getData() {
-            return data;
+        /**
+         * @return false if the account already exists
+         */
+        public boolean create(Account account) {
+            return data.put(account.getId(), 0);
+        }
+
+        public boolean delete(Account account) {
+            return data.remove(account.getId());
+        }
+
+        @Nullable
+        public Integer get(Account account) {
+            int id = account.getId();
+            return data.contains(id) ? data.get(id) : null;
+        }
+
+        int getLastId() {
+            return lastId;
+        }
+
+        void setLastId(int lastId) {
+            this.lastId = lastId;
+        }
+    }
+
+    public static class State extends TxState {
+        private final    AccountStore store;
+        private          int          chainSize = 0;    // blocks applied to it
+        private volatile Set<Account> accounts  = null; // once published, see publishedAccounts
+
+        private State(AccountStore store, int lastId) {
+            super(store, lastId);
+            this.store = store;
+        }
+
+        /**
+         * Reads a state written by {@link #writeTo} into an empty store.
+         */
+        static State readFrom(DataInput in, AccountStore empty) throws IOException {
+            var state = new State(empty, 0);
+            state.chainSize = in.readInt();
+            state.setLastId(in.readInt());
+            for (int n = in.readInt(); n > 0; n--) {
+                state.store.put(in.readInt(), in.readInt());
+            }
+            return state;
+        }
+
+        /**
+         * Writes the chain size, lastId and every (id, balance), as ints. Only for a published
+         * state, which is never written again.
+         */
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(chainSize);
+            out.writeInt(getLastId());
+            out.writeInt(store.size());
+            try {
+                store.forEach(id -> {
+                    try {
+                        out.writeInt(id);
+                        out.writeInt(store.get(id));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * @return a copy, the state may still be written
+         */
+        public Set<Account> getAccounts() {
+            Set<Account> accounts = new HashSet<>(store.size());
+            store.forEach(id -> accounts.add(Account.from(id)));
+            return accounts;
+        }
+
+        // copied once, for a published state which is never written again
+        Set<Account> publishedAccounts() {
+            var accounts = this.accounts;
+            if (accounts == null) { // racing readers copy equal sets, either one is fine
+                accounts = Collections.unmodifiableSet(getAccounts());
+                this.accounts = accounts;
+            }
+            return accounts;
         }
 
         State fork() {
-            return new State(new HashMap<>(data), lastId);
+            var fork = new State(store.fork(), getLastId());
+            fork.chainSize = chainSize;
+            return fork;
+        }
+
+        int getChainSize() {
+            return chainSize;
+        }
+
+        // a state whose writes are buffered until merged back, see BlockExecutor
+        Overlay overlay() {
+            return new Overlay(new BalanceOverlay(store), getLastId());
+        }
+
+        void merge(Overlay overlay) {
+            overlay.written.mergeInto(store);
+        }
+    }
+
+    static class Overlay extends TxState {
+        private final BalanceOverlay written;
+
+        private Overlay(BalanceOverlay written, int lastId) {
+            super(written, lastId);
+            this.written = written;
         }
     }
 
     @Nullable
     Integer get(Account account) {
-        return state.getAcquire().getData().get(account);
+        return state.getAcquire().get(account);
     }
 
     Set<Account> getAccounts() {
-        return state.getAcquire().getData().keySet();
+        return state.getAcquire().publishedAccounts();
+    }
+
+    /**
+     * @return the latest state, consistent with its chain size; it's never written again
+     */
+    State published() {
+        return state.getAcquire();
+    }
+
+    /**
+     * Starts from a state transferred from a peer, instead of applying the chain up to its chain size.
+     * Only before any block was applied.
+     */
+    synchronized void install(State snapshot) throws IOException {
+        if (chain.size() != 0) throw new IllegalStateException("already " + chain.size() + " blocks");
+
+        if (snapshots != null) snapshots.write(snapshot); // before the blocks it doesn't cover are stored
+        chain.startAt(snapshot.chainSize);
+        state.setRelease(snapshot);
     }
 
     synchronized void apply(Block block) {
         State forked = state.get().fork();
-        block.applyTo(forked);
+        block.applyTo(forked, executor);
+        ++forked.chainSize;
         state.setRelease(forked);
-        chain.put(block.getId(), block);
+        var archived = block.archive();
+        chain.append(archived);
+        statuses.add(archived);
+
+        if (snapshots != null) snapshots.onApplied(forked);
+    }
+
+    /**
+     * @param blockKey {@link BlockId#toLong()}
+     */
+    boolean isChained(long blockKey) {
+        return chain.contains(blockKey);
     }
 
-    Optional<Block> getBlock(BlockId blockId) {
-        return Optional.ofNullable(chain.get(blockId));
+    Optional<ArchivedBlock> getBlock(BlockId blockId) {
+        return chain.find(blockId.toLong());
     }
 
+    /**
+     * Blocks applied since started are found in the status index, older ones in the chain store.
+     */
     Optional<Transaction.Result> getStatus(TxId txId) {
-        Block block = chain.get(BlockId.from(txId));
-        if (block == null) return Optional.empty();
+        Transaction.Result status = statuses.get(txId);
+        if (status != null) return Optional.of(status);
 
-        return Optional.of(block.getResult(txId));
+        return chain.find(txId.blockKey()).map(block -> block.getResult(txId.getTxIdx()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,10 @@
+package Blockchain;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Tracks the live servers, {@code Server.onMembershipChange} is called with the others on any change.
+ */
+public interface MembershipService {
+    InetSocketAddress getServerMembershipData(Integer serverId);
+}
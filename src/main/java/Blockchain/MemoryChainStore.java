@@ -0,0 +1,61 @@
+package Blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongConsumer;
+
+/**
+ * Every archived block kept on the heap, nothing survives a restart.
+ */
+class MemoryChainStore implements ChainStore {
+    private final ConcurrentLongMap<ArchivedBlock> blocks = new ConcurrentLongMap<>(); // by block key
+    private final List<ArchivedBlock>              order  = new ArrayList<>(); // guarded by this
+    private       int                              first  = 0;                 // guarded by this
+
+    @Override
+    public synchronized void append(ArchivedBlock block) {
+        blocks.put(block.getId().toLong(), block);
+        order.add(block);
+    }
+
+    @Override
+    public synchronized int size() {
+        return first + order.size();
+    }
+
+    @Override
+    public synchronized int firstIdx() {
+        return first;
+    }
+
+    @Override
+    public synchronized void startAt(int chainIdx) {
+        if (!order.isEmpty()) throw new IllegalStateException("already " + order.size() + " blocks");
+        first = chainIdx;
+    }
+
+    @Override
+    public Optional<ArchivedBlock> find(long blockKey) {
+        return Optional.ofNullable(blocks.get(blockKey));
+    }
+
+    @Override
+    public boolean contains(long blockKey) {
+        return blocks.containsKey(blockKey);
+    }
+
+    @Override
+    public synchronized ArchivedBlock get(int chainIdx) {
+        return order.get(chainIdx - first);
+    }
+
+    @Override
+    public void forEachBlockKey(LongConsumer action) {
+        blocks.forEachKey(action);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,38 @@
+package Blockchain;
+
+import ServerCommunication.BlockId;
+
+/**
+ * Gives the replicated blocks a single order, the same for all the servers.
+ * <p>
+ * Every block is chained by calling {@code Server.onBlockChained} on each server with consecutive
+ * chain indices, from a single thread per server.
+ */
+public interface OrderingService {
+    /**
+     * Asks to chain a block that was replicated already, {@code Server.onBlockChainError} is called
+     * if it couldn't.
+     */
+    void postBlock(BlockId blockId);
+
+    /**
+     * A peer's block was acked by a quorum of peers, the peer posts it itself. Only if
+     * {@link #tracksPeerBlocks()}.
+     */
+    default void onPeerBlockReplicated(BlockId blockId) {
+    }
+
+    /**
+     * @return whether the peers should tell this server about their replicated blocks
+     */
+    default boolean tracksPeerBlocks() {
+        return false;
+    }
+
+    /**
+     * @return the lowest serial number the next block sealed by this server may get
+     */
+    default int nextBlockSerial() {
+        return 0;
+    }
+}
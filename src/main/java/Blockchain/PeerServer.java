@@ -1,17 +1,53 @@
 package Blockchain;
 
+import ServerCommunication.BlockEncoding;
+import ServerCommunication.BlockReplicatedReq;
+import ServerCommunication.BlockReplicatedRsp;
+import ServerCommunication.ChainSizeReq;
+import ServerCommunication.FetchSnapshotReq;
+import ServerCommunication.NegotiateReq;
+import ServerCommunication.NegotiateRsp;
+import ServerCommunication.PushBlockReq;
+import ServerCommunication.PushBlockRsp;
 import ServerCommunication.ServerGrpc;
+import ServerCommunication.SnapshotChunk;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 class PeerServer {
     private final ServerGrpc.ServerStub stub;
     private final ManagedChannel        channel;
 
+    private volatile BlockEncoding encoding    = BlockEncoding.PROTO; // until negotiated
+    private final    AtomicBoolean negotiating = new AtomicBoolean(false);
+    private volatile boolean       negotiated  = false;
+    private volatile boolean       legacy      = false; // older than EncodedBlock, reads BlockMsgs
+
+    private static final int SNAPSHOT_IDLE_TIMEOUT_S = 30; // without a chunk, however large the state
+
+    private          ReplicateStream stream    = null; // guarded by this
+    private volatile boolean         streaming = true;
+
     PeerServer(@NotNull InetSocketAddress address) {
         channel = ManagedChannelBuilder.forAddress(address.getHostName(), address.getPort())
                                        .usePlaintext()
@@ -20,6 +56,10 @@ class PeerServer {
     }
 
     void shutdown() {
+        synchronized (this) {
+            if (stream != null) stream.requests.onCompleted();
+            stream = null;
+        }
         channel.shutdown();
         try {
             channel.awaitTermination(5, TimeUnit.SECONDS);
@@ -31,4 +71,255 @@ class PeerServer {
     ServerGrpc.ServerStub stub() {
         return stub;
     }
+
+    /**
+     * @return the chain size of the ledger state the peer would send, -1 if it can't tell
+     */
+    int chainSize() {
+        try {
+            return ServerGrpc.newBlockingStub(channel)
+                             .withDeadlineAfter(5, TimeUnit.SECONDS)
+                             .chainSize(ChainSizeReq.getDefaultInstance())
+                             .getChainSize();
+        } catch (StatusRuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Tells the peer one of our blocks was acked by a quorum, never blocks. Older peers don't
+     * listen, they don't need it.
+     */
+    void notifyReplicated(@NotNull ServerCommunication.BlockId blockId) {
+        stub.withDeadlineAfter(5, TimeUnit.SECONDS)
+            .blockReplicated(BlockReplicatedReq.newBuilder().setId(blockId).build(), new StreamObserver<>() {
+                @Override
+                public void onNext(BlockReplicatedRsp value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+    }
+
+    /**
+     * Streams the current ledger state of the peer, read as it arrives. Given up once no chunk
+     * arrived for {@code SNAPSHOT_IDLE_TIMEOUT_S}, rather than after a fixed total time.
+     */
+    InputStream fetchSnapshot() {
+        var call        = Context.current().withCancellation();
+        var lastChunkAt = new AtomicLong(System.nanoTime());
+        var previous    = call.attach();
+        Iterator<SnapshotChunk> chunks;
+        try {
+            chunks = ServerGrpc.newBlockingStub(channel).fetchSnapshot(FetchSnapshotReq.getDefaultInstance());
+        } finally {
+            call.detach(previous);
+        }
+        cancelOnceIdle(call, lastChunkAt);
+
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                lastChunkAt.set(System.nanoTime());
+                return chunks.next().getData().newInput();
+            }
+        }) {
+            @Override
+            public void close() throws IOException {
+                call.cancel(null); // stops the call, if it's not done, and the idle checks
+                super.close();
+            }
+        };
+    }
+
+    private static void cancelOnceIdle(Context.CancellableContext call, AtomicLong lastChunkAt) {
+        if (call.isCancelled()) return;
+
+        long idleNanos = System.nanoTime() - lastChunkAt.get();
+        long leftNanos = TimeUnit.SECONDS.toNanos(SNAPSHOT_IDLE_TIMEOUT_S) - idleNanos;
+        if (leftNanos <= 0) {
+            call.cancel(Status.DEADLINE_EXCEEDED
+                                .withDescription("no snapshot chunk for " + SNAPSHOT_IDLE_TIMEOUT_S + "s")
+                                .asRuntimeException());
+            return;
+        }
+        CompletableFuture.delayedExecutor(leftNanos, TimeUnit.NANOSECONDS)
+                         .execute(() -> cancelOnceIdle(call, lastChunkAt));
+    }
+
+    /**
+     * Sends a block on the replicate stream (or as a single call to peers that don't have it).
+     * Never blocks.
+     *
+     * @return completes with whether the peer accepted the block, or false after 5 seconds
+     */
+    CompletableFuture<Boolean> push(@NotNull PushBlockReq req) {
+        if (!streaming) {
+            return pushUnary(req);
+        }
+
+        var acked = new CompletableFuture<Boolean>();
+        acked.completeOnTimeout(false, 5, TimeUnit.SECONDS);
+
+        synchronized (this) {
+            if (stream == null) {
+                stream = new ReplicateStream();
+                stub.replicate(stream);
+            }
+            stream.send(req, acked);
+        }
+        return acked;
+    }
+
+    private CompletableFuture<Boolean> pushUnary(@NotNull PushBlockReq req) {
+        var acked = new CompletableFuture<Boolean>();
+
+        // the peer may be older, the block is in PROTO until negotiated
+        if ((legacy || !negotiated) && req.getBlock().getEncoding() == BlockEncoding.PROTO) {
+            try {
+                req = req.toBuilder().setLegacyBlock(BlockCodec.toLegacy(req.getBlock())).build();
+            } catch (InvalidProtocolBufferException e) {
+                acked.complete(false);
+                return acked;
+            }
+        }
+
+        stub.withDeadlineAfter(5, TimeUnit.SECONDS).pushBlock(req, new StreamObserver<>() {
+            @Override
+            public void onNext(PushBlockRsp value) {
+                acked.complete(value.getSuccess());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                acked.complete(false);
+            }
+
+            @Override
+            public void onCompleted() {
+                acked.complete(false); // no-op if answered
+            }
+        });
+        return acked;
+    }
+
+    /**
+     * A long-lived replicate call, blocks go one way and acks come back on it. Blocks are only sent
+     * while the call is ready, the others wait for its onReady handler. When it ends, only the
+     * blocks pushed on it are failed.
+     */
+    private class ReplicateStream implements ClientResponseObserver<PushBlockReq, PushBlockRsp> {
+        private final ConcurrentLongMap<CompletableFuture<Boolean>> unacked = new ConcurrentLongMap<>();
+        private final ArrayDeque<PushBlockReq>                      waiting = new ArrayDeque<>(); // guarded by PeerServer.this
+        private       ClientCallStreamObserver<PushBlockReq>        requests;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<PushBlockReq> requests) {
+            this.requests = requests;
+            requests.setOnReadyHandler(this::sendWaiting);
+        }
+
+        // with the PeerServer lock held
+        void send(PushBlockReq req, CompletableFuture<Boolean> acked) {
+            long blockKey = BlockId.toLong(req.getBlock().getId());
+            unacked.put(blockKey, acked);
+            acked.whenComplete((ok, t) -> {
+                if (unacked.get(blockKey) == acked) unacked.remove(blockKey);
+            });
+
+            if (waiting.isEmpty() && requests.isReady()) {
+                requests.onNext(req);
+            } else {
+                waiting.add(req);
+            }
+        }
+
+        private void sendWaiting() {
+            synchronized (PeerServer.this) {
+                while (!waiting.isEmpty() && requests.isReady()) {
+                    var req = waiting.poll();
+                    if (unacked.containsKey(BlockId.toLong(req.getBlock().getId()))) { // not timed out
+                        requests.onNext(req);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onNext(PushBlockRsp value) {
+            var acked = unacked.get(BlockId.toLong(value.getId()));
+            if (acked != null) acked.complete(value.getSuccess());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+                streaming = false; // an older peer
+            }
+            close();
+        }
+
+        @Override
+        public void onCompleted() {
+            close();
+        }
+
+        private void close() {
+            synchronized (PeerServer.this) {
+                if (stream == this) stream = null; // reopened by the next push
+                waiting.clear();
+            }
+            unacked.forEachKey(blockKey -> {
+                var acked = unacked.get(blockKey);
+                if (acked != null) acked.complete(false);
+            });
+        }
+    }
+
+    /**
+     * The encoding to push blocks with, PROTO until the peer tells otherwise.
+     */
+    BlockEncoding encoding() {
+        if (!negotiated && negotiating.compareAndSet(false, true)) {
+            negotiate();
+        }
+        return encoding;
+    }
+
+    private void negotiate() {
+        var req = NegotiateReq.newBuilder().addAllSupported(BlockCodec.SUPPORTED).build();
+
+        stub.withDeadlineAfter(5, TimeUnit.SECONDS).negotiate(req, new StreamObserver<>() {
+            @Override
+            public void onNext(NegotiateRsp value) {
+                if (BlockCodec.SUPPORTED.contains(value.getEncoding())) {
+                    encoding = value.getEncoding();
+                }
+                negotiated = true;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // an older peer keeps the default, otherwise try again on the next push
+                legacy = Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED;
+                negotiated = legacy;
+                negotiating.set(false);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
 }
@@ -0,0 +1,208 @@
+package Blockchain;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Persistent account id -> balance trie (a HAMT keyed directly by the account id).
+ * <p>
+ * {@link #fork()} is O(1): both copies share the whole trie and a node is copied only the first
+ * time a fork writes to it. Nodes created by a fork are owned by it, so any further writes to them
+ * (e.g. the rest of the block) are done in place.
+ */
+class PersistentAccountMap implements AccountStore {
+    private static final int BITS  = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK  = WIDTH - 1;
+
+    private static final int MAX_SHIFT = 30; // 7 levels cover all 32 bits of an id
+
+    private static final class Leaf {
+        final Object edit;
+        int          bitmap;
+        final int[]  balances;
+
+        Leaf(Object edit, int bitmap, int[] balances) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.balances = balances;
+        }
+
+        Leaf editable(Object edit) {
+            return this.edit == edit ? this : new Leaf(edit, bitmap, balances.clone());
+        }
+    }
+
+    private static final class Branch {
+        final Object edit;
+        int          bitmap;
+        Object[]     children; // Branch or Leaf, compressed by bitmap
+
+        Branch(Object edit, int bitmap, Object[] children) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        Branch editable(Object edit) {
+            return this.edit == edit ? this : new Branch(edit, bitmap, children.clone());
+        }
+    }
+
+    private Object edit  = new Object();
+    private Object root  = null;
+    private int    shift = 0; // the root covers ids < 1 << (shift + BITS)
+    private int    size  = 0;
+
+    PersistentAccountMap() {
+    }
+
+    private PersistentAccountMap(Object root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    private static int slot(int id, int shift) {
+        return (id >>> shift) & MASK;
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private boolean fits(int id) {
+        return shift >= MAX_SHIFT || (id >>> (shift + BITS)) == 0;
+    }
+
+    private Leaf findLeaf(int id) {
+        if (root == null || !fits(id)) return null;
+
+        Object node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            var branch = (Branch) node;
+            int bit    = 1 << slot(id, level);
+            if ((branch.bitmap & bit) == 0) return null;
+            node = branch.children[index(branch.bitmap, bit)];
+        }
+        return (Leaf) node;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        Leaf leaf = findLeaf(id);
+        return leaf != null && (leaf.bitmap & (1 << slot(id, 0))) != 0;
+    }
+
+    @Override
+    public int get(int id) {
+        Leaf leaf = findLeaf(id);
+        return leaf == null ? 0 : leaf.balances[slot(id, 0)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean put(int id, int balance) {
+        while (!fits(id)) {
+            // grow upwards, the old root becomes the first child of the new one
+            shift += BITS;
+            if (root != null) root = new Branch(edit, 1, new Object[]{root});
+        }
+
+        Leaf leaf = editableLeaf(id);
+        int  bit  = 1 << slot(id, 0);
+        leaf.balances[slot(id, 0)] = balance;
+        if ((leaf.bitmap & bit) != 0) return false;
+
+        leaf.bitmap |= bit;
+        ++size;
+        return true;
+    }
+
+    @Override
+    public boolean remove(int id) {
+        if (!contains(id)) return false;
+
+        Leaf leaf = editableLeaf(id);
+        leaf.bitmap &= ~(1 << slot(id, 0));
+        leaf.balances[slot(id, 0)] = 0;
+        --size;
+        // empty leaves are kept, accounts are rarely deleted
+        return true;
+    }
+
+    // Path-copies (or creates) every node on the way to the leaf of id, unless owned by this fork.
+    private Leaf editableLeaf(int id) {
+        if (shift == 0) {
+            Leaf leaf = root == null ? new Leaf(edit, 0, new int[WIDTH]) : ((Leaf) root).editable(edit);
+            root = leaf;
+            return leaf;
+        }
+
+        Branch branch = root == null ? new Branch(edit, 0, new Object[0]) : ((Branch) root).editable(edit);
+        root = branch;
+
+        for (int level = shift; ; level -= BITS) {
+            int     bit     = 1 << slot(id, level);
+            int     idx     = index(branch.bitmap, bit);
+            boolean present = (branch.bitmap & bit) != 0;
+
+            Object child;
+            if (level == BITS) {
+                child = present ? ((Leaf) branch.children[idx]).editable(edit)
+                                : new Leaf(edit, 0, new int[WIDTH]);
+            } else {
+                child = present ? ((Branch) branch.children[idx]).editable(edit)
+                                : new Branch(edit, 0, new Object[0]);
+            }
+
+            if (present) {
+                branch.children[idx] = child;
+            } else {
+                var children = new Object[branch.children.length + 1];
+                System.arraycopy(branch.children, 0, children, 0, idx);
+                System.arraycopy(branch.children, idx, children, idx + 1, branch.children.length - idx);
+                children[idx] = child;
+                branch.children = children;
+                branch.bitmap |= bit;
+            }
+
+            if (level == BITS) return (Leaf) child;
+            branch = (Branch) child;
+        }
+    }
+
+    @Override
+    public void forEach(IntConsumer action) {
+        if (root != null) forEach(root, 0, shift, action);
+    }
+
+    private static void forEach(Object node, int prefix, int level, IntConsumer action) {
+        if (level == 0) {
+            var leaf = (Leaf) node;
+            for (int bits = leaf.bitmap; bits != 0; bits &= bits - 1) {
+                action.accept(prefix | Integer.numberOfTrailingZeros(bits));
+            }
+            return;
+        }
+
+        var branch = (Branch) node;
+        int i      = 0;
+        for (int bits = branch.bitmap; bits != 0; bits &= bits - 1, ++i) {
+            int childPrefix = prefix | (Integer.numberOfTrailingZeros(bits) << level);
+            forEach(branch.children[i], childPrefix, level - BITS, action);
+        }
+    }
+
+    /**
+     * O(1) copy. Nodes are shared, from now on both this map and the fork copy them on write.
+     */
+    @Override
+    public PersistentAccountMap fork() {
+        edit = new Object();
+        return new PersistentAccountMap(root, shift, size);
+    }
+}
@@ -0,0 +1,60 @@
+package Blockchain;
+
+/**
+ * Queue depths of the apply pipeline stages, a snapshot.
+ */
+public class PipelineMetrics {
+    private final int  chainedQueueDepth;
+    private final int  decodingQueueDepth;
+    private final long appliedBlocks;
+    private final int  lastAppliedIdx;
+    private final long applierStalls;
+    private final long avgApplyMicros;
+
+    PipelineMetrics(int chainedQueueDepth,
+                    int decodingQueueDepth,
+                    long appliedBlocks,
+                    int lastAppliedIdx,
+                    long applierStalls,
+                    long avgApplyNanos) {
+        this.chainedQueueDepth = chainedQueueDepth;
+        this.decodingQueueDepth = decodingQueueDepth;
+        this.appliedBlocks = appliedBlocks;
+        this.lastAppliedIdx = lastAppliedIdx;
+        this.applierStalls = applierStalls;
+        this.avgApplyMicros = avgApplyNanos / 1000;
+    }
+
+    /**
+     * Chained blocks whose fetch didn't start yet.
+     */
+    public int getChainedQueueDepth() {
+        return chainedQueueDepth;
+    }
+
+    /**
+     * Blocks being fetched or decoded, or ready and waiting for the applier.
+     */
+    public int getDecodingQueueDepth() {
+        return decodingQueueDepth;
+    }
+
+    public long getAppliedBlocks() {
+        return appliedBlocks;
+    }
+
+    public int getLastAppliedIdx() {
+        return lastAppliedIdx;
+    }
+
+    /**
+     * How many times the applier had to wait for the next block to arrive or be decoded.
+     */
+    public long getApplierStalls() {
+        return applierStalls;
+    }
+
+    public long getAvgApplyMicros() {
+        return avgApplyMicros;
+    }
+}
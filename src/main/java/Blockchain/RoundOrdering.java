@@ -0,0 +1,216 @@
+package Blockchain;
+
+import ServerCommunication.BlockId;
+import ServerCommunication.RoundRecord;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Leaderless ordering by rounds, ZooKeeper is left with the membership and the round closing.
+ * <p>
+ * The blocks of round r are the ones with serial number r, a server seals one block per round at
+ * most, and they are chained by server id. Closed rounds are kept in consecutive slots under
+ * /Rounds: any member may close the next slot with the blocks it knows of, the first one to create
+ * its znode wins. So there is a ZooKeeper write per round instead of one per block.
+ * <p>
+ * Round r is closed by the member whose turn it is, once every member has sealed a block of round r
+ * or a later one, or once {@code closeTimeout} passed. The other members step in after twice that.
+ * Members that sealed no block in the previous round are idle and not waited for. Blocks that
+ * missed their round are closed with the next one, still ordered by (serial number, server id).
+ * A member only learns of a peer's block once its sealer got a quorum of acks, so a closed round
+ * never holds a block that only its sealer has.
+ * <p>
+ * The slots are read and compacted into checkpoints like the {@link ZooKeeperClient} znodes. A slot
+ * is only created while the previous one exists, so a member lagging behind a compaction can't
+ * close a slot that was compacted already.
+ */
+class RoundOrdering extends ZooKeeperClient {
+    private static final String roundsRootPath      = "/Rounds";
+    private static final String checkpointsRootPath = "/RoundsCheckpoints";
+
+    private static final Comparator<BlockId> ROUND_ORDER =
+            Comparator.comparingInt(BlockId::getSerialNumber).thenComparingInt(BlockId::getServerId);
+
+    private final Duration                 closeTimeout;
+    private final ScheduledExecutorService rounds;
+
+    // only from the rounds thread
+    private final TreeSet<BlockId>      unordered   = new TreeSet<>(ROUND_ORDER);
+    private final ArrayDeque<Long>      ordered     = new ArrayDeque<>(); // block keys, not applied yet
+    private final Set<Long>             orderedKeys = new HashSet<>();
+    private final Map<Integer, Integer> reached     = new HashMap<>(); // highest serial per server
+    private       int                   nextSlot    = 0;
+    private       int                   closingSlot = -1; // our attempt to close it is in flight
+    private       int                   target      = -1; // the round to close next
+    private       long                  targetSince;
+    private       ScheduledFuture<?>    timeout     = null;
+
+    private volatile int lastClosedRound = -1;
+
+    RoundOrdering(@NotNull Server server, @NotNull Duration closeTimeout) {
+        super(server, 1, roundsRootPath, checkpointsRootPath);
+        this.closeTimeout = closeTimeout;
+        rounds = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "rounds-" + server.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void LOG(Object msg) {
+        System.out.println("[ROUNDS] " + msg);
+    }
+
+    @Override
+    List<BlockId> parseZnode(String path, byte[] data) {
+        try {
+            return RoundRecord.parseFrom(data).getIdsList();
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("corrupted round " + path, e);
+        }
+    }
+
+    @Override
+    void onChained(int seq, List<BlockId> blockIds) {
+        rounds.execute(() -> onSlotsClosed(seq, blockIds));
+    }
+
+    @Override
+    public void close() {
+        rounds.shutdownNow();
+        super.close();
+    }
+
+    @Override
+    public void postBlock(BlockId blockId) {
+        rounds.execute(() -> {
+            add(blockId);
+            tryClose();
+        });
+    }
+
+    // not once pushed: a round closed with a block only its crashed sealer had would stall everyone
+    @Override
+    public void onPeerBlockReplicated(BlockId blockId) {
+        postBlock(blockId);
+    }
+
+    @Override
+    public boolean tracksPeerBlocks() {
+        return true;
+    }
+
+    @Override
+    public int nextBlockSerial() {
+        return lastClosedRound + 1;
+    }
+
+    private void add(BlockId blockId) {
+        reached.merge(blockId.getServerId(), blockId.getSerialNumber(), Integer::max);
+        if (!isOrdered(blockId)) {
+            unordered.add(blockId);
+        }
+    }
+
+    // a late notice of a block ordered already, e.g. retried, must not be ordered again
+    private boolean isOrdered(BlockId blockId) {
+        while (!ordered.isEmpty() && server().isChained(ordered.peekFirst())) {
+            orderedKeys.remove(ordered.pollFirst()); // the chain has it from now on
+        }
+        long key = Blockchain.BlockId.toLong(blockId);
+        return orderedKeys.contains(key) || server().isChained(key);
+    }
+
+    // the slots up to lastSlot were closed with these blocks, the base class chained them already
+    private void onSlotsClosed(int lastSlot, List<BlockId> blockIds) {
+        nextSlot = Integer.max(nextSlot, lastSlot + 1);
+
+        for (BlockId blockId : blockIds) {
+            reached.merge(blockId.getServerId(), blockId.getSerialNumber(), Integer::max);
+            long key = Blockchain.BlockId.toLong(blockId);
+            if (orderedKeys.add(key)) ordered.addLast(key);
+            unordered.remove(blockId);
+            lastClosedRound = Integer.max(lastClosedRound, blockId.getSerialNumber()); // a slot's round is its highest serial
+        }
+
+        tryClose();
+    }
+
+    private void tryClose() {
+        if (closingSlot == nextSlot || unordered.isEmpty()) return;
+
+        final int round = unordered.first().getSerialNumber();
+        if (round != target) {
+            target = round;
+            targetSince = System.nanoTime();
+        }
+
+        // one member takes its turn, the others only step in if it didn't close the round in time
+        var     members    = members().stream().sorted().collect(Collectors.toList());
+        boolean myTurn     = members.isEmpty() || members.get(round % members.size()) == server().getId();
+        boolean allReached = members.stream().allMatch(member -> {
+            int memberReached = reached.getOrDefault(member, -1);
+            return memberReached >= round || memberReached < round - 1; // or idle, not waited for
+        });
+        long    waitNanos  = (myTurn ? closeTimeout : closeTimeout.multipliedBy(2)).toNanos() -
+                             (System.nanoTime() - targetSince);
+        if (!(myTurn && allReached) && waitNanos > 0) {
+            if (timeout != null) timeout.cancel(false);
+            timeout = rounds.schedule(this::tryClose, waitNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        var blockIds = new ArrayList<BlockId>();
+        for (BlockId blockId : unordered) {
+            if (blockId.getSerialNumber() > round) break;
+            blockIds.add(blockId);
+        }
+
+        final int slot   = nextSlot;
+        var       record = RoundRecord.newBuilder().setRound(round).addAllIds(blockIds).build();
+        LOG("closing round " + round + " in slot " + slot + " with " +
+            blockIds.stream().map(BlockId::getServerId).collect(Collectors.toList()));
+
+        // the previous slot must still exist, else it was compacted and so may this one be
+        var previous = slot == 0 ? Op.check(checkpointsRootPath, 0) // never compacted
+                                 : Op.check(znodePath(slot - 1), -1);
+        var create   = Op.create(znodePath(slot),
+                                 record.toByteArray(),
+                                 ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                 CreateMode.PERSISTENT);
+
+        closingSlot = slot;
+        zk().multi(List.of(previous, create), (rc, path, ctx, results) -> {
+            // on NODEEXISTS another member closed it, we'll read which blocks
+            var code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS) return;
+
+            LOG("can't close slot " + slot + ": " + code);
+            rounds.execute(() -> {
+                if (closingSlot == slot) closingSlot = -1;
+                // behind a compaction: wait for the reads to catch up, they call tryClose
+                if (code != KeeperException.Code.NONODE && code != KeeperException.Code.BADVERSION) tryClose();
+            });
+        }, null);
+    }
+}
@@ -0,0 +1,235 @@
+package Blockchain;
+
+import ServerCommunication.StoredBlock;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only block log on disk, split in memory-mapped segment files.
+ * <p>
+ * A segment is named after the chain index of its first block and holds {@code [length][StoredBlock]}
+ * records, a zero length marks its end. The chain index -> position index is rebuilt by scanning the
+ * segments when opened. Reads go straight to the mapped segments, the most recently used blocks
+ * are kept decoded.
+ * <p>
+ * Segments are flushed every {@code FLUSH_EVERY} blocks, when full and when closed. Blocks lost by
+ * a crash before that are simply pulled again from the peers.
+ */
+class SegmentedBlockStore implements ChainStore {
+    private static final int    SEGMENT_BYTES = 64 << 20;
+    private static final int    FLUSH_EVERY   = 16;
+    private static final String PREFIX        = "segment-";
+
+    private final Path dir;
+
+    // guarded by this
+    private final List<MappedByteBuffer> segments    = new ArrayList<>();
+    private       long[]                 positions   = new long[1 << 10]; // from first, segment << 32 | offset
+    private       int                    first       = 0; // chain index of the first block
+    private       int                    size        = 0;
+    private       int                    writeOffset = 0; // in the last segment
+    private       int                    unflushed   = 0;
+    private final BoundedMap<Integer, ArchivedBlock> cache; // by chain index
+
+    private final ConcurrentLongMap<Integer> chainIdxs = new ConcurrentLongMap<>(); // by block key
+
+    /**
+     * @param cacheSize how many decoded blocks to keep
+     */
+    SegmentedBlockStore(@NotNull Path dir, int cacheSize) {
+        this.dir = dir;
+        cache = new BoundedMap<>(cacheSize, true);
+
+        try {
+            Files.createDirectories(dir);
+            List<Path> files;
+            try (Stream<Path> listed = Files.list(dir)) {
+                files = listed.filter(path -> path.getFileName().toString().startsWith(PREFIX))
+                              .sorted()
+                              .collect(Collectors.toList());
+            }
+            if (!files.isEmpty()) {
+                first = size = firstIdxOf(files.get(0));
+            }
+            for (Path file : files) {
+                segments.add(map(file, 0));
+                scan(segments.size() - 1);
+            }
+            if (size == first && !files.isEmpty()) { // nothing made it to disk, may start anywhere
+                segments.clear();
+                for (Path file : files) Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't open the block store in " + dir, e);
+        }
+    }
+
+    private static void LOG(Object msg) {
+        System.out.println("[STORE] " + msg);
+    }
+
+    private static int firstIdxOf(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().substring(PREFIX.length()));
+    }
+
+    private static MappedByteBuffer map(Path file, int minSize) throws IOException {
+        try (var channel = FileChannel.open(file,
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), minSize);
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // stays valid once closed
+        }
+    }
+
+    // indexes the records of a segment, up to the first missing or torn one
+    private void scan(int segmentIdx) {
+        ByteBuffer segment = segments.get(segmentIdx).duplicate();
+        int        offset  = 0;
+        while (offset + Integer.BYTES <= segment.limit()) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || offset + Integer.BYTES + length > segment.limit()) break;
+
+            StoredBlock stored;
+            try {
+                stored = read(segment, offset);
+            } catch (InvalidProtocolBufferException e) {
+                break;
+            }
+            index(BlockId.from(stored.getBlock().getId()), segmentIdx, offset);
+            offset += Integer.BYTES + length;
+        }
+        // overwrite whatever follows, e.g. a torn write
+        if (offset + Integer.BYTES <= segment.limit()) segment.putInt(offset, 0);
+        writeOffset = offset;
+        LOG("segment " + segmentIdx + ": " + size + " blocks so far");
+    }
+
+    // copied to the heap first: protobuf's unsafe decoder of direct buffers crashes on mapped ones
+    private static StoredBlock read(ByteBuffer segment, int offset) throws InvalidProtocolBufferException {
+        var record = new byte[segment.getInt(offset)];
+        segment.duplicate().position(offset + Integer.BYTES).get(record);
+        return StoredBlock.parseFrom(record);
+    }
+
+    private void index(BlockId blockId, int segmentIdx, int offset) {
+        if (size - first == positions.length) positions = Arrays.copyOf(positions, positions.length * 2);
+        positions[size - first] = (long) segmentIdx << 32 | offset;
+        chainIdxs.put(blockId.toLong(), size);
+        ++size;
+    }
+
+    @Override
+    public synchronized void append(ArchivedBlock block) {
+        byte[] record = block.toStored().toByteArray();
+
+        try {
+            int segmentIdx = segments.size() - 1;
+            int offset     = writeOffset;
+
+            // the record, then a zero length after it, then its length: readers never see a torn one
+            if (segmentIdx < 0 || offset + 2 * Integer.BYTES + record.length > segments.get(segmentIdx).limit()) {
+                if (segmentIdx >= 0) segments.get(segmentIdx).force();
+                Path file = dir.resolve(String.format("%s%010d", PREFIX, size));
+                segments.add(map(file, Math.max(SEGMENT_BYTES, 2 * Integer.BYTES + record.length)));
+                segmentIdx = segments.size() - 1;
+                offset = 0;
+            }
+
+            var segment = segments.get(segmentIdx);
+            segment.duplicate().position(offset + Integer.BYTES).put(record);
+            segment.putInt(offset + Integer.BYTES + record.length, 0);
+            segment.putInt(offset, record.length);
+
+            cache.put(size, block);
+            index(block.getId(), segmentIdx, offset);
+            writeOffset = offset + Integer.BYTES + record.length;
+
+            if (++unflushed == FLUSH_EVERY) {
+                segment.force();
+                unflushed = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't append " + block.getId(), e);
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int firstIdx() {
+        return first;
+    }
+
+    @Override
+    public synchronized void startAt(int chainIdx) {
+        if (size != first) throw new IllegalStateException("already " + (size - first) + " blocks");
+        first = size = chainIdx;
+    }
+
+    @Override
+    public Optional<ArchivedBlock> find(long blockKey) {
+        Integer chainIdx = chainIdxs.get(blockKey);
+        return chainIdx == null ? Optional.empty() : Optional.of(get(chainIdx));
+    }
+
+    @Override
+    public boolean contains(long blockKey) {
+        return chainIdxs.containsKey(blockKey);
+    }
+
+    @Override
+    public ArchivedBlock get(int chainIdx) {
+        ByteBuffer segment;
+        int        offset;
+        synchronized (this) {
+            long position = positions[chainIdx - first];
+            segment = segments.get((int) (position >>> 32));
+            offset = (int) position;
+
+            ArchivedBlock cached = cache.get(chainIdx);
+            if (cached != null) return cached;
+        }
+
+        ArchivedBlock block;
+        try {
+            block = ArchivedBlock.fromStored(read(segment, offset));
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("corrupted block at " + chainIdx, e);
+        }
+
+        synchronized (this) {
+            cache.put(chainIdx, block);
+        }
+        return block;
+    }
+
+    @Override
+    public void forEachBlockKey(LongConsumer action) {
+        chainIdxs.forEachKey(action);
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.forEach(MappedByteBuffer::force);
+    }
+}
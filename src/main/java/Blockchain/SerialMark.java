@@ -0,0 +1,68 @@
+package Blockchain;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * High-water mark of the serial numbers this server gave its blocks, on disk.
+ * <p>
+ * The chain store may lose its last blocks in a crash while the ordering service chained them, so
+ * the serials of a restarted server can't be derived from it. Instead the serials are reserved
+ * {@code RESERVE} at a time, the mark being forced to disk before a block gets one past it: a
+ * restart resumes from the mark, past any serial that may have been used.
+ */
+class SerialMark {
+    private static final int    RESERVE = 1 << 10;
+    private static final String TMP     = ".tmp";
+
+    private final Path file;
+    private       int  mark; // guarded by this, serials below it may have been used
+
+    SerialMark(@NotNull Path file) {
+        this.file = file;
+        try {
+            Files.createDirectories(file.getParent());
+            mark = Files.exists(file) ? ByteBuffer.wrap(Files.readAllBytes(file)).getInt() : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't read the serial mark " + file, e);
+        }
+    }
+
+    /**
+     * @return the first serial number that was never reserved
+     */
+    synchronized int next() {
+        return mark;
+    }
+
+    /**
+     * Called before a block gets serialNum, returns once it's safe to use it.
+     */
+    synchronized void reserve(int serialNum) {
+        if (serialNum < mark) return;
+
+        int  newMark = serialNum + RESERVE;
+        Path tmp     = file.resolveSibling(file.getFileName() + TMP);
+        try {
+            try (var channel = FileChannel.open(tmp,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, newMark));
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't reserve serial " + serialNum, e);
+        }
+        mark = newMark;
+    }
+}
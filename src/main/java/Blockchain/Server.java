@@ -5,50 +5,120 @@ import Blockchain.Batch.BatchingStrategy;
 import Blockchain.Batch.TimedAdaptiveBatching;
 import Blockchain.Transaction.*;
 import ServerCommunication.*;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 public class Server {
+    private static final int      APPLY_AHEAD          = 64; // blocks fetched and decoded ahead of the applier
+    private static final int      PUSH_TRIES           = 10;
+    private static final Duration PUSH_RETRY_DELAY     = Duration.ofMillis(500);
+    private static final Duration MAX_PUSH_RETRY_DELAY = Duration.ofSeconds(10);
+    private static final int      BLOCK_CACHE_SIZE     = 256;
+    private static final int      SNAPSHOT_CHUNK_BYTES = 1 << 16;
+
     private final int               id;
     private final InetSocketAddress address;
     private final int               faultSetSize;
 
     private       BatchingStrategy batchingStrategy;
     private final BlockBuilder     blockBuilder;
-    private final Ledger           ledger           = new Ledger();
+    private final Ledger           ledger;
 
     private final ConcurrentHashMap<Integer, PeerServer> peers   = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<BlockId, BlockMsg>   pending = new ConcurrentHashMap<>();
-    private final BoundedMap<TxId, Transaction.Result>   results = new BoundedMap<>(1 << 10);
-
-    private final io.grpc.Server  serverListener;
-    private final ZooKeeperClient zkClient;
-
-
-    Server(int id, InetSocketAddress myAddress, BatchingStrategy batchingStrategy, int faultSetSize) {
+    private final ConcurrentLongMap<EncodedBlock>        pending = new ConcurrentLongMap<>(); // by block key
+    private final ConcurrentLongMap<Long>                sealed  = new ConcurrentLongMap<>(); // own blocks, to first append
+
+    private final Semaphore       inFlight;   // sealed blocks of ours that are not chained yet
+    private final ExecutorService replicator; // encodes our blocks and handles their acks
+    private final BlockEncoding   blockEncoding; // the one we want to receive
+    private final BlockFetcher    fetcher;
+    private final ApplyPipeline   applyPipeline;
+    private final ClockCache<TxId, Transaction.Result>   results = new ClockCache<>(1 << 10);
+
+    // the post of our last sealed block, guarded by blockBuilder
+    private CompletableFuture<Void> posted = CompletableFuture.completedFuture(null);
+
+    private final io.grpc.Server      serverListener;
+    private final CoordinationService coordination; // ZooKeeper unless told otherwise
+
+    private final Ledger.Backend stateBackend;
+    private final AtomicBoolean  bootstrapping = new AtomicBoolean(false); // until a peer state is installed
+    private volatile boolean     applying      = false;
+
+
+    Server(int id,
+           InetSocketAddress myAddress,
+           BatchingStrategy batchingStrategy,
+           int faultSetSize,
+           Ledger.Backend stateBackend,
+           int pipelineDepth,
+           BlockEncoding blockEncoding,
+           Duration fetchHedgeDelay,
+           @Nullable Path dataDir,
+           int snapshotInterval,
+           boolean stateTransfer,
+           Function<Server, CoordinationService> coordination) {
         LOG(String.format("Created; id=%d, port=%s", id, myAddress));
 
         this.id = id;
         this.faultSetSize = faultSetSize;
         this.batchingStrategy = batchingStrategy;
-        blockBuilder = new BlockBuilder(id);
+        this.stateBackend = stateBackend;
+        ledger = dataDir == null ? new Ledger(stateBackend)
+                                 : new Ledger(stateBackend,
+                                              new SegmentedBlockStore(dataDir.resolve("chain"), BLOCK_CACHE_SIZE),
+                                              new StateSnapshots(dataDir.resolve("snapshots"), snapshotInterval));
+        this.blockEncoding = blockEncoding;
+        inFlight = new Semaphore(pipelineDepth);
+        replicator = Executors.newFixedThreadPool(pipelineDepth);
+        fetcher = new BlockFetcher(this::otherPeers, pending, fetchHedgeDelay);
+        applyPipeline = new ApplyPipeline(fetcher::take,
+                                          ForkJoinPool.commonPool(),
+                                          this::applyChained,
+                                          APPLY_AHEAD);
+        // blocks chained but not flushed before a restart are past the stored chain, resume from the
+        // serials reserved on disk instead
+        var serials = dataDir == null ? null : new SerialMark(dataDir.resolve("serials"));
+        int firstSerial = serials == null ? 0 : Math.max(ledger.lastSerialOf(id) + 1, serials.next());
+        blockBuilder = new BlockBuilder(id,
+                                        firstSerial,
+                                        serials == null ? blockIdx -> {} : serials::reserve,
+                                        new BlockSizeReporter());
         address = SocketAddressFactory.from(myAddress.getHostName(), myAddress.getPort());
         serverListener = io.grpc.ServerBuilder.forPort(myAddress.getPort())
                                               .addService(new ServerRpc())
                                               .build();
-        zkClient = new ZooKeeperClient(this);
+        this.coordination = coordination.apply(this);
+        bootstrapping.set(stateTransfer && ledger.chainSize() == 0);
     }
 
     private static void LOG(Object msg) {
@@ -63,7 +133,9 @@ public class Server {
 
     public Server start() throws IOException {
         batchingStrategy.start(new Batcher());
+        if (!bootstrapping.get()) startApplying(); // else once the state is transferred
         serverListener.start();
+        coordination.start();
         return this;
     }
 
@@ -72,8 +144,14 @@ public class Server {
     }
 
     void shutdown() {
+        coordination.close();
         batchingStrategy.shutdown();
+        replicator.shutdown();
+        fetcher.shutdown();
+        applyPipeline.shutdown();
         serverListener.shutdown();
+        peers.values().forEach(PeerServer::shutdown); // else their connections keep the peers' listeners open
+        ledger.close();
         assert blockBuilder.isEmpty();
     }
 
@@ -89,7 +167,7 @@ public class Server {
                                              }).collect(Collectors.toList());
 
         for (Integer peerId : removedPeersIds) {
-            final PeerServer peer = peers.replace(peerId, null);
+            final PeerServer peer = peers.remove(peerId);
             if (peer != null) {
                 peer.shutdown();
                 cleanUpServerBlocks(peerId);
@@ -99,34 +177,121 @@ public class Server {
         // add new peers
         for (Integer serverId : newView) {
             peers.computeIfAbsent(serverId,
-                                  id -> new PeerServer(zkClient.getServerMembershipData(id)));
+                                  id -> new PeerServer(coordination.getServerMembershipData(id)));
+        }
+
+        fetcher.onPeersChanged();
+
+        if (bootstrapping.compareAndSet(true, false)) {
+            var thread = new Thread(this::transferState, "state-transfer-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Installs the state of the most advanced peer that sends it, so only the blocks chained after
+     * it are brought and applied. Then starts applying, whatever happened.
+     */
+    private void transferState() {
+        try {
+            var sizes = new HashMap<Integer, Integer>();
+            otherPeerIds().forEach(peerId -> sizes.put(peerId, peers.get(peerId).chainSize()));
+            var byChainSize = new ArrayList<>(sizes.keySet());
+            byChainSize.sort(Comparator.comparing(sizes::get, Comparator.reverseOrder()));
+
+            for (int peerId : byChainSize) {
+                if (sizes.get(peerId) == 0) continue; // nothing to transfer, older peers may tell -1
+                if (tryTransferState(peerId)) break;
+            }
+        } catch (RuntimeException e) {
+            LOG("state transfer failed: " + e);
+        } finally {
+            startApplying();
+        }
+    }
+
+    private boolean tryTransferState(int peerId) {
+        PeerServer peerServer = peers.get(peerId);
+        if (peerServer == null) return false; // left meanwhile
+
+        try (var in = new DataInputStream(new BufferedInputStream(peerServer.fetchSnapshot()))) {
+            var state = Ledger.State.readFrom(in, stateBackend.createStore());
+            ledger.install(state);
+            applyPipeline.dropBelow(state.getChainSize(), pending::remove);
+            LOG("installed the state of " + peerId + " at chain size " + state.getChainSize());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG("can't transfer the state of " + peerId + ": " + e);
+            return false;
         }
     }
 
+    private void startApplying() {
+        applyPipeline.start();
+        applying = true;
+    }
+
+    /**
+     * Starts bringing the blocks that are about to be chained, instead of one at a time once chained.
+     */
+    void prefetch(List<ServerCommunication.BlockId> blockIdMsgs) {
+        if (!applying) return; // a state transfer may cover them
+        fetcher.prefetch(blockIdMsgs);
+    }
+
+    private List<Integer> otherPeerIds() {
+        var others = new ArrayList<Integer>();
+        peers.forEach((peerId, peerServer) -> {
+            if (peerId != id) others.add(peerId);
+        });
+        return others;
+    }
+
+    private List<PeerServer> otherPeers() {
+        var others = new ArrayList<PeerServer>();
+        peers.forEach((peerId, peerServer) -> {
+            if (peerId != id) others.add(peerServer);
+        });
+        return others;
+    }
+
     private void cleanUpServerBlocks(int serverId) {
         LOG("cleaning server " + serverId);
         // TODO: synchronize with ZK to find the latest block chained by this server.
         //  this can by done once for all disconnected servers
         int latestBlock = Integer.MAX_VALUE - 1; // TODO replace with the above real value
 
-        List<BlockId> toBeDeleted = new ArrayList<>();
-        pending.forEachKey(1024, blockId -> {
-            if (blockId.getServerId() == serverId && blockId.getSerialNum() > latestBlock) {
-                toBeDeleted.add(blockId);
-            }
-        });
-
-        toBeDeleted.forEach(pending::remove);
+        pending.removeIf(blockKey -> (int) (blockKey >>> 32) == serverId && (int) blockKey > latestBlock);
     }
 
     void onBlockChainError(ServerCommunication.BlockId blockIdMsg) {
         LOG("onBlockChainError " + BlockId.from(blockIdMsg));
-        zkClient.postBlock(blockIdMsg);
+        coordination.postBlock(blockIdMsg);
     }
 
     void onBlockChained(ServerCommunication.BlockId blockIdMsg, Integer idx) {
-        var blockId = BlockId.from(blockIdMsg);
-        LOG("onBlockChained " + blockId);
+        if (idx < ledger.chainSize()) { // restored from the block store, or transferred from a peer
+            pending.remove(BlockId.toLong(blockIdMsg));
+            return;
+        }
+        applyPipeline.submit(BlockId.toLong(blockIdMsg), idx);
+    }
+
+    /**
+     * Never blocks, the ordering thread may also handle membership and sessions.
+     *
+     * @param resume called once the applier caught up, from another thread
+     * @return whether the applier is too far behind, the ordering service should then read no new
+     * blocks until resume is called
+     */
+    boolean deferChaining(Runnable resume) {
+        return applyPipeline.deferWhileBackedUp(resume);
+    }
+
+    // called by the apply pipeline, in chain order
+    private void applyChained(int idx, @NotNull Block block) {
+        var blockId = block.getId();
 
         int chainSize = ledger.chainSize();
         if (chainSize != idx) {// actually it should never happen, zk keep the block state
@@ -134,123 +299,188 @@ public class Server {
             return;
         }
 
-        BlockMsg blockMsg;
-        while ((blockMsg = pending.remove(blockId)) == null) {
-            LOG("Block " + blockId + " wasn't received yet");
-            pullBlock(blockId);
+        ledger.apply(block);
+        results.putAll(block.getResults());
 
-            try {
-                Thread.sleep(Duration.ofSeconds(3).toMillis());
-            } catch (InterruptedException ignored) {
-            }
-        }
+        LOG("appended! " + blockId + " idx=" + idx + " txs=" + block.size());
 
-        Block block = Block.from(blockMsg);
-        ledger.apply(block);
-        synchronized (results) {
-            results.putAll(block.getResults());
+        Long openedNanos = sealed.remove(blockId.toLong());
+        if (openedNanos != null) {
+            inFlight.release();
+            batchingStrategy.onBlockCommitted(block.size(),
+                                              Duration.ofNanos(System.nanoTime() - openedNanos));
         }
-
-        LOG( " appended! " + blockId + " idx=" + idx);
-        System.out.println(block);
     }
 
-    private boolean pushBlock(@NotNull Block block) throws InterruptedException {
+    /**
+     * Pushes the block to all the peers.
+     *
+     * @return completes with true once a quorum of {@code min(faultSetSize, peers)} peers acked it,
+     * or with false once too many of them gave up for a quorum to be possible. Peers that haven't
+     * acked by then keep getting it in the background.
+     */
+    private CompletableFuture<Boolean> pushBlock(@NotNull Block block) {
         LOG("pushBlock: " + block.getId());
-        BlockMsg blockMsg = block.toBlockMsg();
 
-        PushBlockReq req = PushBlockReq.newBuilder().setBlock(blockMsg).build();
+        // one request per encoding the peers asked for
+        var reqs     = new EnumMap<BlockEncoding, PushBlockReq>(BlockEncoding.class);
+        var replicas = new ArrayList<>(peers.values());
 
-        final var finished = new Semaphore(0);
-        final var nOk      = new AtomicInteger(0);
+        final int quorum  = Integer.min(faultSetSize, replicas.size());
+        final var acked   = new CompletableFuture<Boolean>();
+        final var nOk     = new AtomicInteger(0);
+        final var nFailed = new AtomicInteger(0);
 
-        class PushBlockObserver implements StreamObserver<PushBlockRsp> {
-            @Override
-            public void onNext(PushBlockRsp value) {
-                if (value.getSuccess()) nOk.incrementAndGet();
-            }
+        if (quorum == 0) {
+            acked.complete(true);
+        }
 
-            @Override
-            public void onError(Throwable t) {
-                // time out will be reached on semaphore,
-                // no need to handle this case
+        for (PeerServer peerServer : replicas) {
+            CompletableFuture<Boolean> delivered;
+            try {
+                var req = reqs.computeIfAbsent(peerServer.encoding(),
+                                               encoding -> PushBlockReq.newBuilder()
+                                                                       .setBlock(block.encode(encoding))
+                                                                       .build());
+                delivered = deliver(peerServer, req, PUSH_TRIES);
+            } catch (RuntimeException e) {
+                LOG("can't push " + block.getId() + ": " + e);
+                delivered = CompletableFuture.completedFuture(false);
             }
+            delivered.thenAccept(ok -> {
+                if (ok ? nOk.incrementAndGet() == quorum
+                       : nFailed.incrementAndGet() == replicas.size() - quorum + 1) {
+                    acked.complete(ok);
+                }
+            });
+        }
 
-            @Override
-            public void onCompleted() {
-                finished.release();
-            }
+        return acked;
+    }
+
+    // never completes exceptionally, a push that threw counts as a failed one
+    private CompletableFuture<Boolean> deliver(@NotNull PeerServer peerServer,
+                                               @NotNull PushBlockReq req,
+                                               int tries) {
+        CompletableFuture<Boolean> pushed;
+        try {
+            pushed = peerServer.push(req);
+        } catch (RuntimeException e) {
+            pushed = CompletableFuture.failedFuture(e);
         }
 
-        peers.forEach((integer, peerServer) -> peerServer.stub()
-                                                         .withDeadlineAfter(5, TimeUnit.SECONDS)
-                                                         .pushBlock(req,
-                                                                    new PushBlockObserver()));
+        return pushed.handle((ok, t) -> {
+            if (t != null) LOG("push to " + peerServer + " failed: " + t);
+            return t == null && ok;
+        }).thenCompose(ok -> {
+            if (ok || tries <= 1) return CompletableFuture.completedFuture(ok);
 
-        int nPeerToWait = Integer.min(faultSetSize, peers.size());
+            // not on the replicator, which rejects tasks once shut down and the retry would never complete
+            var retryAt = CompletableFuture.delayedExecutor(PUSH_RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> deliver(peerServer, req, tries - 1), retryAt)
+                                    .thenCompose(Function.identity());
+        });
+    }
 
-        finished.tryAcquire(nPeerToWait, 10, TimeUnit.SECONDS);
+    private boolean receiveBlock(@NotNull EncodedBlock block) {
+        var blockId = BlockId.from(block.getId());
 
-        if (nOk.get() < peers.size()) {
+        LOG("pushBlock requested " + blockId);
+
+        if (peers.get(blockId.getServerId()) == null) {
+            LOG("pushBlock rejected");
             return false;
         }
 
-        pending.put(block.getId(), blockMsg);
+        pending.putIfAbsent(blockId.toLong(), block);
+        fetcher.offer(blockId.toLong(), block);
         return true;
     }
 
-    private void pullBlock(@NotNull BlockId blockId) {
-        LOG("pullBlock: " + blockId);
+    private void trySealBlock() throws InterruptedException {
+        if (blockBuilder.isEmpty()) {
+            return;
+        }
+        if (!applying) { // the transferred state could cover our blocks, without their results
+            return;
+        }
 
-        var req = PullBlockReq.newBuilder().setId(blockId.toBlockIdMsg()).build();
+        // wait for a free slot in the pipeline, released once one of our blocks is chained
+        inFlight.acquire();
 
-        class PullBlockObserver implements StreamObserver<PullBlockRsp> {
-            @Override
-            public void onNext(PullBlockRsp value) {
-                if (value.getSuccess() && value.hasBlock()) {
-                    pending.putIfAbsent(blockId, value.getBlock());
-                }
-            }
+        LOG("sealing block");
 
-            @Override
-            public void onError(Throwable t) {
-            }
+        synchronized (blockBuilder) { // the seal order is the post order
+            final Block block = blockBuilder.seal(coordination.nextBlockSerial());
+            sealed.put(block.getId().toLong(), block.getOpenedNanos());
 
-            @Override
-            public void onCompleted() {
-            }
-        }
+            var replicated = new CompletableFuture<Void>();
+            replicator.execute(() -> replicate(block, replicated, PUSH_RETRY_DELAY));
 
-        // pick a random peer and ask him for this block
-        peers.values()
-             .stream()
-             .skip((int) (peers.size() * Math.random()))
-             .findFirst()
-             .ifPresent(peerServer -> peerServer.stub()
-                                                .withDeadlineAfter(5, TimeUnit.SECONDS)
-                                                .pullBlock(req, new PullBlockObserver()));
+            // replicated in parallel, posted one after the other, whatever happened to the previous one
+            posted = CompletableFuture.allOf(posted, replicated).handleAsync((ignored, t) -> {
+                postReplicated(block, replicated);
+                return null;
+            }, replicator);
+        }
     }
 
-    private void trySealBlock() throws InterruptedException {
-        if (blockBuilder.isEmpty()) {
-            return;
+    // a block that can't be posted is dropped, it will never be chained and free its slot
+    private void postReplicated(@NotNull Block block, CompletableFuture<Void> replicated) {
+        long blockKey = block.getId().toLong();
+        try {
+            replicated.join();
+            post(block);
+        } catch (RuntimeException e) {
+            LOG("can't post " + block.getId() + ", dropping it: " + e);
+            pending.remove(blockKey);
+            if (sealed.remove(blockKey) != null) inFlight.release();
         }
+    }
 
-        LOG("sealing block");
+    // pushes until a quorum acked it, backing off while there is none: its txs were handed out
+    private void replicate(@NotNull Block block, CompletableFuture<Void> replicated, Duration retryDelay) {
+        pushBlock(block).whenComplete((ok, t) -> {
+            if (Boolean.TRUE.equals(ok)) {
+                replicated.complete(null);
+                return;
+            }
 
-        final Block   block = blockBuilder.seal();
-        final BlockId id    = block.getId();
+            LOG("replication of " + block.getId() + " failed: " + (t != null ? t : "no quorum")
+                        + ", retrying in " + retryDelay.toMillis() + "ms");
+            if (replicator.isShutdown()) {
+                replicated.completeExceptionally(new IllegalStateException("shutting down"));
+                return;
+            }
 
-        int tries = 50;
-        for (; tries > 0 ; --tries) {
-            if (pushBlock(block)) break;
-        }
-        if (tries == 0) throw new RuntimeException("Failed to push block " + id);
+            var doubled   = retryDelay.multipliedBy(2);
+            var nextDelay = doubled.compareTo(MAX_PUSH_RETRY_DELAY) > 0 ? MAX_PUSH_RETRY_DELAY : doubled;
+            CompletableFuture.delayedExecutor(retryDelay.toMillis(), TimeUnit.MILLISECONDS, replicator)
+                             .execute(() -> replicate(block, replicated, nextDelay));
+        });
+    }
 
-        zkClient.postBlock(id.toBlockIdMsg());
+    private void post(@NotNull Block block) {
+        var blockIdMsg = block.getId().toBlockIdMsg();
+        pending.put(block.getId().toLong(), block.encode(blockEncoding));
+        coordination.postBlock(blockIdMsg);
+        if (coordination.tracksPeerBlocks()) { // only now, a quorum has it
+            otherPeers().forEach(peerServer -> peerServer.notifyReplicated(blockIdMsg));
+        }
         // TODO: should apply only after we sure it is the latest, try to bring the rest if not
     }
 
+    /**
+     * @return whether the block was applied already, not whether it's being ordered
+     */
+    boolean isChained(long blockKey) {
+        return ledger.isChained(blockKey);
+    }
+
+    public PipelineMetrics getApplyMetrics() {
+        return applyPipeline.getMetrics();
+    }
+
     int getId() {
         return id;
     }
@@ -262,41 +492,210 @@ public class Server {
     private class ServerRpc extends ServerGrpc.ServerImplBase {
         @Override
         public void pushBlock(PushBlockReq request, StreamObserver<PushBlockRsp> responseObserver) {
-            var block   = request.getBlock();
-            var blockId = BlockId.from(block.getId());
-
-            LOG("pushBlock requested " + blockId);
-
-            if (peers.get(blockId.getServerId()) == null) {
-                LOG("pushBlock rejected");
+            var block = request.hasBlock() ? request.getBlock() : BlockCodec.fromLegacy(request.getLegacyBlock());
+            if (!receiveBlock(block)) {
                 return; // don't listen to this zombie
             }
 
-            pending.putIfAbsent(blockId, block);
-
             responseObserver.onNext(PushBlockRsp.newBuilder().setSuccess(true).build());
             responseObserver.onCompleted();
         }
 
+        @Override
+        public StreamObserver<PushBlockReq> replicate(StreamObserver<PushBlockRsp> responseObserver) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(PushBlockReq request) {
+                    boolean accepted = receiveBlock(request.getBlock());
+                    responseObserver.onNext(PushBlockRsp.newBuilder()
+                                                        .setId(request.getBlock().getId())
+                                                        .setSuccess(accepted)
+                                                        .build());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
         @Override
         public void pullBlock(PullBlockReq request, StreamObserver<PullBlockRsp> responseObserver) {
             BlockId id = BlockId.from(request.getId());
             LOG("pullBlock requested " + id);
 
-            BlockMsg blockMsg;
-            blockMsg = Optional.ofNullable(pending.get(id)) // check in the pending list
-                               .orElseGet(
-                                       () -> ledger.getBlock(id) // else check in the ledger
-                                                   .map(Block::toBlockMsg) // transform it if found
-                                                   .orElse(null));  // at least we tried
-            var builder = PullBlockRsp.newBuilder();
-            if (blockMsg != null) {
-                builder.setBlock(blockMsg).setSuccess(true);
+            EncodedBlock encoded = lookUp(id, accepted(request.getAcceptedList()));
+            var          builder = PullBlockRsp.newBuilder();
+            if (encoded != null && request.getAcceptedCount() == 0) { // an older peer, encoded in PROTO
+                try {
+                    builder.setLegacyBlock(BlockCodec.toLegacy(encoded)).setSuccess(true);
+                } catch (InvalidProtocolBufferException e) {
+                    LOG("can't send " + id + " to an older peer: " + e);
+                }
+            } else if (encoded != null) {
+                builder.setBlock(encoded).setSuccess(true);
             }
 
             responseObserver.onNext(builder.build());
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void pullBlocks(PullBlocksReq request, StreamObserver<PullBlockRsp> responseObserver) {
+            LOG("pullBlocks requested " + request.getIdsCount() + " blocks");
+
+            var responses = (ServerCallStreamObserver<PullBlockRsp>) responseObserver;
+            var sender    = new PulledBlocksSender(request, responses);
+            responses.setOnReadyHandler(sender);
+            sender.run();
+        }
+
+        // sends the blocks found while the call is ready, resumed by its onReady handler
+        private class PulledBlocksSender implements Runnable {
+            private final List<ServerCommunication.BlockId>      ids;
+            private final Set<BlockEncoding>                     accepted;
+            private final ServerCallStreamObserver<PullBlockRsp> responses;
+            private       int                                    next = 0; // guarded by this
+
+            PulledBlocksSender(PullBlocksReq request, ServerCallStreamObserver<PullBlockRsp> responses) {
+                this.ids = request.getIdsList();
+                this.accepted = accepted(request.getAcceptedList());
+                this.responses = responses;
+            }
+
+            @Override
+            public synchronized void run() {
+                while (next < ids.size() && responses.isReady()) {
+                    if (responses.isCancelled()) return;
+
+                    EncodedBlock encoded = lookUp(BlockId.from(ids.get(next++)), accepted);
+                    if (encoded != null) {
+                        responses.onNext(PullBlockRsp.newBuilder()
+                                                     .setBlock(encoded)
+                                                     .setSuccess(true)
+                                                     .build());
+                    }
+                }
+                if (next == ids.size()) {
+                    ++next; // completed once
+                    responses.onCompleted();
+                }
+            }
+        }
+
+        private Set<BlockEncoding> accepted(List<BlockEncoding> requested) {
+            var accepted = new HashSet<>(requested);
+            accepted.add(BlockEncoding.PROTO);
+            return accepted;
+        }
+
+        private EncodedBlock lookUp(BlockId id, Set<BlockEncoding> accepted) {
+            var encoding = accepted.contains(blockEncoding) ? blockEncoding : BlockEncoding.PROTO;
+
+            return Optional.ofNullable(pending.get(id.toLong())) // check in the pending list
+                           .map(pendingBlock -> accepted.contains(pendingBlock.getEncoding())
+                                                ? pendingBlock // relayed as is
+                                                : Block.from(pendingBlock).encode(encoding))
+                           .orElseGet(
+                                   () -> ledger.getBlock(id) // else check in the ledger
+                                               .map(archived -> accepted.contains(archived.getEncoded().getEncoding())
+                                                                ? archived.getEncoded() // archived as is
+                                                                : archived.decode().encode(encoding))
+                                               .orElse(null));  // at least we tried
+        }
+
+        @Override
+        public void fetchSnapshot(FetchSnapshotReq request, StreamObserver<SnapshotChunk> responseObserver) {
+            var state = ledger.published();
+            LOG("fetchSnapshot requested, sending the state at chain size " + state.getChainSize());
+
+            // written as a whole, on its own thread which waits while the call isn't ready
+            var chunks = new SnapshotChunks((ServerCallStreamObserver<SnapshotChunk>) responseObserver);
+            var thread = new Thread(() -> chunks.send(state), "snapshot-sender-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // sends what is written while the call is ready, resumed by its onReady handler
+        private class SnapshotChunks extends OutputStream {
+            private final ServerCallStreamObserver<SnapshotChunk> responses;
+
+            SnapshotChunks(ServerCallStreamObserver<SnapshotChunk> responses) {
+                this.responses = responses;
+                responses.setOnReadyHandler(this::resume);
+                responses.setOnCancelHandler(this::resume);
+            }
+
+            void send(Ledger.State state) {
+                try (var out = new DataOutputStream(new BufferedOutputStream(this, SNAPSHOT_CHUNK_BYTES))) {
+                    state.writeTo(out);
+                } catch (IOException e) {
+                    LOG("can't send the state: " + e);
+                    if (!responses.isCancelled()) responses.onError(e);
+                    return;
+                }
+                responses.onCompleted();
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                awaitReady();
+                responses.onNext(SnapshotChunk.newBuilder()
+                                              .setData(ByteString.copyFrom(b, off, len))
+                                              .build());
+            }
+
+            private synchronized void awaitReady() throws IOException {
+                while (!responses.isReady()) {
+                    if (responses.isCancelled()) throw new IOException("cancelled by the peer");
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            private synchronized void resume() {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void blockReplicated(BlockReplicatedReq request, StreamObserver<BlockReplicatedRsp> responseObserver) {
+            if (peers.get(request.getId().getServerId()) != null) { // else a zombie
+                coordination.onPeerBlockReplicated(request.getId());
+            }
+            responseObserver.onNext(BlockReplicatedRsp.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void chainSize(ChainSizeReq request, StreamObserver<ChainSizeRsp> responseObserver) {
+            responseObserver.onNext(ChainSizeRsp.newBuilder().setChainSize(ledger.published().getChainSize()).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void negotiate(NegotiateReq request, StreamObserver<NegotiateRsp> responseObserver) {
+            var encoding = request.getSupportedList().contains(blockEncoding) ? blockEncoding
+                                                                              : BlockEncoding.PROTO;
+            LOG("negotiate requested, answering " + encoding);
+
+            responseObserver.onNext(NegotiateRsp.newBuilder().setEncoding(encoding).build());
+            responseObserver.onCompleted();
+        }
     }
 
     public TxId createAccount() {
@@ -347,10 +746,7 @@ public class Server {
 
     public Transaction.Result getTxStatus(TxId txId) {
         // LOG("getTxStatus " + txId);
-        Transaction.Result result;
-        synchronized (results) {
-            result = results.get(txId);
-        }
+        Transaction.Result result = results.get(txId);
         if (result != null) {
             return result;
         }
@@ -359,11 +755,21 @@ public class Server {
 
     public Transaction.Result deleteTxStatus(TxId txId) {
         LOG("deleteTxStatus " + txId);
-        Transaction.Result result;
-        synchronized (results) {
-            result = results.remove(txId);
+        return results.remove(txId);
+    }
+
+    // to the current strategy, which may change
+    private class BlockSizeReporter implements BlockBuilder.SizeListener {
+        @Override
+        public boolean onGrown(int txCount, long byteSize) {
+            var listener = batchingStrategy.blockSizeListener();
+            return listener != null && listener.onBlockGrown(txCount, byteSize);
+        }
+
+        @Override
+        public boolean isListening() {
+            return batchingStrategy.blockSizeListener() != null;
         }
-        return result;
     }
 
     private class Batcher implements BatcherProxy {
@@ -376,5 +782,10 @@ public class Server {
         public void interrupted() {
             shutdown();
         }
+
+        @Override
+        public Duration openBlockAge() {
+            return blockBuilder.openAge();
+        }
     }
 }
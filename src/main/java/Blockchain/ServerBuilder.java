@@ -2,8 +2,12 @@ package Blockchain;
 
 import Blockchain.Batch.AdaptiveBatching;
 import Blockchain.Batch.BatchingStrategy;
+import ServerCommunication.BlockEncoding;
 
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.Function;
 import java.util.MissingResourceException;
 
 public class ServerBuilder {
@@ -11,7 +15,20 @@ public class ServerBuilder {
     private int               id               = -1;
     private int               faultSetSize     = 2;
     private BatchingStrategy  batchingStrategy = new AdaptiveBatching();
+    private Ledger.Backend    stateBackend     = Ledger.Backend.PERSISTENT;
+    private int               pipelineDepth    = 4;
+    private BlockEncoding     blockEncoding    = BlockEncoding.COLUMNAR;
+    private Duration          fetchHedgeDelay  = Duration.ofMillis(50);
+    private int               orderingBatch    = 64;
+    private Path              dataDir          = null; // keep the chain in memory
+    private int               snapshotInterval = 1 << 10;
+    private boolean           stateTransfer    = true;
 
+    private Function<Server, CoordinationService> coordination = null; // ZooKeeper
+
+    /**
+     * How many peers have to ack a block of this server before it is ordered.
+     */
     public ServerBuilder setFaultSetSize(int faultSetSize) {
         this.faultSetSize = faultSetSize;
         return this;
@@ -22,6 +39,89 @@ public class ServerBuilder {
         return this;
     }
 
+    public ServerBuilder setStateBackend(Ledger.Backend stateBackend) {
+        this.stateBackend = stateBackend;
+        return this;
+    }
+
+    /**
+     * How many sealed blocks of this server may be replicated and ordered at the same time.
+     */
+    public ServerBuilder setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * The block encoding peers are asked to use when pushing blocks to this server.
+     */
+    public ServerBuilder setBlockEncoding(BlockEncoding blockEncoding) {
+        this.blockEncoding = blockEncoding;
+        return this;
+    }
+
+    /**
+     * How long to wait for a missing block from the peers asked so far before asking more of them.
+     */
+    public ServerBuilder setFetchHedgeDelay(Duration fetchHedgeDelay) {
+        this.fetchHedgeDelay = fetchHedgeDelay;
+        return this;
+    }
+
+    /**
+     * How many blocks may be ordered by a single ZooKeeper write, 1 for a znode per block.
+     * Ignored with another coordination service.
+     */
+    public ServerBuilder setOrderingBatchSize(int orderingBatch) {
+        this.orderingBatch = orderingBatch;
+        return this;
+    }
+
+    /**
+     * Replaces ZooKeeper for ordering and membership, e.g. with {@link InProcessSequencer#member()}.
+     */
+    public ServerBuilder setCoordination(Function<Server, CoordinationService> coordination) {
+        this.coordination = coordination;
+        return this;
+    }
+
+    /**
+     * Orders the blocks by rounds instead of with a ZooKeeper write each, see {@link RoundOrdering}.
+     *
+     * @param closeTimeout how long a round waits for the servers that didn't seal a block for it
+     */
+    public ServerBuilder setRoundOrdering(Duration closeTimeout) {
+        this.coordination = server -> new RoundOrdering(server, closeTimeout);
+        return this;
+    }
+
+    /**
+     * Where to keep the chained blocks, so a restarted server only catches up on the blocks it
+     * missed. They are kept in memory only if not set.
+     */
+    public ServerBuilder setDataDir(Path dataDir) {
+        this.dataDir = dataDir;
+        return this;
+    }
+
+    /**
+     * How many applied blocks between two snapshots of the ledger state, which a restart resumes
+     * from. Ignored without a data dir.
+     */
+    public ServerBuilder setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+        return this;
+    }
+
+    /**
+     * Whether a server starting with an empty chain installs the ledger state of a peer, instead of
+     * applying the whole chain.
+     */
+    public ServerBuilder setStateTransfer(boolean stateTransfer) {
+        this.stateTransfer = stateTransfer;
+        return this;
+    }
+
     public ServerBuilder setId(int id) {
         this.id = id;
         return this;
@@ -37,6 +137,9 @@ public class ServerBuilder {
         if (id == -1) throw new MissingResourceException("missing id", int.class.getName(), "");
         if (address == null) throw new MissingResourceException("missing address", int.class.getName(), "");
 
-        return new Server(id, address, batchingStrategy, faultSetSize);
+        return new Server(id, address, batchingStrategy, faultSetSize, stateBackend, pipelineDepth, blockEncoding,
+                          fetchHedgeDelay, dataDir, snapshotInterval, stateTransfer,
+                          coordination != null ? coordination
+                                               : server -> new ZooKeeperClient(server, orderingBatch));
     }
 }
\ No newline at end of file
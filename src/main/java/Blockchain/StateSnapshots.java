@@ -0,0 +1,162 @@
+package Blockchain;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshots of the ledger state every {@code interval} applied blocks, so a restart only applies
+ * the blocks chained after the latest one.
+ * <p>
+ * A snapshot file is named after the chain size it covers and holds {@link Ledger.State#writeTo}
+ * followed by its CRC32. It's written to a temporary file, on a background thread, and then renamed.
+ * Only the last {@code KEEP} snapshots are kept.
+ */
+class StateSnapshots {
+    private static final int    KEEP   = 2;
+    private static final String PREFIX = "state-";
+    private static final String TMP    = ".tmp";
+
+    private final Path            dir;
+    private final int             interval;
+    private final ExecutorService writer;
+
+    /**
+     * @param interval how many applied blocks between snapshots
+     */
+    StateSnapshots(@NotNull Path dir, int interval) {
+        this.dir = dir;
+        this.interval = interval;
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "state-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't open the snapshots in " + dir, e);
+        }
+    }
+
+    private static void LOG(Object msg) {
+        System.out.println("[SNAPSHOT] " + msg);
+    }
+
+    private static int chainSizeOf(Path file) {
+        return Integer.parseInt(file.getFileName().toString().substring(PREFIX.length()));
+    }
+
+    private List<Path> list() throws IOException {
+        try (Stream<Path> listed = Files.list(dir)) {
+            return listed.filter(path -> {
+                             String name = path.getFileName().toString();
+                             return name.startsWith(PREFIX) && !name.endsWith(TMP);
+                         })
+                         .sorted(Comparator.comparingInt(StateSnapshots::chainSizeOf).reversed())
+                         .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @param minChainSize the first block available to apply after the snapshot
+     * @param maxChainSize the blocks available to apply after the snapshot, newer snapshots are
+     *                     skipped: the blocks they cover may not have been flushed
+     * @return the latest valid snapshot covering between minChainSize and maxChainSize blocks
+     */
+    Optional<Ledger.State> latest(int minChainSize, int maxChainSize, Supplier<AccountStore> emptyStore) {
+        try {
+            for (Path file : list()) {
+                int chainSize = chainSizeOf(file);
+                if (chainSize > maxChainSize || chainSize < minChainSize) continue;
+
+                try (var checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)),
+                                                          new CRC32());
+                     var in = new DataInputStream(checked)) {
+                    var  state = Ledger.State.readFrom(in, emptyStore.get());
+                    long crc   = checked.getChecksum().getValue();
+                    if (in.readLong() == crc) {
+                        LOG("restored " + file.getFileName());
+                        return Optional.of(state);
+                    }
+                } catch (IOException e) {
+                    // torn or corrupted, try an older one
+                }
+                LOG("skipping corrupted " + file.getFileName());
+            }
+        } catch (IOException e) {
+            LOG("can't list the snapshots: " + e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Called with every newly published state, which must not be written anymore.
+     */
+    void onApplied(Ledger.State state) {
+        if (state.getChainSize() % interval == 0) {
+            writer.execute(() -> {
+                try {
+                    write(state);
+                } catch (IOException e) {
+                    LOG("can't write the state at " + state.getChainSize() + ": " + e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a snapshot of state now, from the calling thread.
+     */
+    void write(Ledger.State state) throws IOException {
+        Path file = dir.resolve(String.format("%s%010d", PREFIX, state.getChainSize()));
+        Path tmp  = dir.resolve(file.getFileName() + TMP);
+
+        try (var checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)),
+                                                   new CRC32());
+             var out = new DataOutputStream(checked)) {
+            state.writeTo(out);
+            out.writeLong(checked.getChecksum().getValue());
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        List<Path> snapshots = list();
+        for (Path old : snapshots.subList(Math.min(KEEP, snapshots.size()), snapshots.size())) {
+            Files.deleteIfExists(old);
+        }
+        LOG("wrote " + file.getFileName());
+    }
+
+    /**
+     * Waits for the snapshot being written, if any.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,6 +4,9 @@ import Blockchain.Account;
 import Blockchain.Ledger;
 import ServerCommunication.Tx;
 
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
 public class DeleteAccountTx extends Transaction {
     private final Account account;
 
@@ -12,11 +15,16 @@ public class DeleteAccountTx extends Transaction {
     }
 
     @Override
-    Transaction.Result doYourThing(Ledger.State state) {
-        state.getData().remove(account);
+    Transaction.Result doYourThing(Ledger.TxState state) {
+        state.delete(account);
         return new Result();
     }
 
+    @Override
+    public void forEachAccessedAccount(IntSupplier newAccountId, IntConsumer action) {
+        action.accept(account.getId());
+    }
+
     @Override
     void addToMsg(Tx.Builder txBuilder) {
         txBuilder.getDeleteBuilder().setAccountId(account.getId());
@@ -4,6 +4,9 @@ import Blockchain.Account;
 import Blockchain.Ledger;
 import ServerCommunication.Tx;
 
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
 public class DepositTx extends Transaction {
     private final Account account;
     private final int     amount;
@@ -14,10 +17,15 @@ public class DepositTx extends Transaction {
     }
 
     @Override
-    Transaction.Result doYourThing(Ledger.State state) {
+    Transaction.Result doYourThing(Ledger.TxState state) {
         return new Result(state.add(account, amount));
     }
 
+    @Override
+    public void forEachAccessedAccount(IntSupplier newAccountId, IntConsumer action) {
+        action.accept(account.getId());
+    }
+
     @Override
     void addToMsg(Tx.Builder txBuilder) {
         txBuilder.getAddAmountBuilder().setAccountId(account.getId()).setAmount(amount);
@@ -5,15 +5,22 @@ import Blockchain.Ledger;
 import ServerCommunication.CreateAccountReq;
 import ServerCommunication.Tx;
 
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
 public class NewAccountTx extends Transaction {
     @Override
-    Transaction.Result doYourThing(Ledger.State state) {
+    Transaction.Result doYourThing(Ledger.TxState state) {
         var account = Account.from(state.allocateId());
-        var old     = state.getData().put(account, 0);
-        if (old != null) throw new AssertionError();
+        if (!state.create(account)) throw new AssertionError();
         return new Result(account);
     }
 
+    @Override
+    public void forEachAccessedAccount(IntSupplier newAccountId, IntConsumer action) {
+        action.accept(newAccountId.getAsInt());
+    }
+
     @Override
     void addToMsg(Tx.Builder txBuilder) {
         txBuilder.setCreate(CreateAccountReq.getDefaultInstance());
@@ -31,6 +38,10 @@ public class NewAccountTx extends Transaction {
             this.newAccount = newAccount;
         }
 
+        public static Result of(Account newAccount) {
+            return new Result(newAccount);
+        }
+
         public Account getNewAccount() {
             return newAccount;
         }
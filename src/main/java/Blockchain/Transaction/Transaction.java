@@ -6,6 +6,9 @@ import ServerCommunication.Tx;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
 public abstract class Transaction {
     // This is ugly
     @NotNull
@@ -29,11 +32,18 @@ public abstract class Transaction {
         }
     }
 
-    public Result process(Ledger.State state) {
+    public Result process(Ledger.TxState state) {
         return doYourThing(state);
     }
 
-    abstract Result doYourThing(Ledger.State state);
+    abstract Result doYourThing(Ledger.TxState state);
+
+    /**
+     * Reports every account this transaction may read or write.
+     *
+     * @param newAccountId allocates the id of an account created by this transaction
+     */
+    public abstract void forEachAccessedAccount(IntSupplier newAccountId, IntConsumer action);
 
     public final Tx toTxMsg() {
         var builder = Tx.newBuilder();
@@ -49,6 +59,21 @@ public abstract class Transaction {
     }
 
     public static class Result {
+        private static final Result COMMITTED = new Result();
+        private static final Result ABORTED   = new Result() {
+            @Override
+            public boolean isCommitted() {
+                return false;
+            }
+        };
+
+        /**
+         * A result known only by whether the tx committed, e.g. of an archived block.
+         */
+        public static Result of(boolean committed) {
+            return committed ? COMMITTED : ABORTED;
+        }
+
         public boolean isCommitted() {
             return true;
         }
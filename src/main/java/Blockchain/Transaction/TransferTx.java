@@ -4,6 +4,9 @@ import Blockchain.Account;
 import Blockchain.Ledger;
 import ServerCommunication.Tx;
 
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
 public class TransferTx extends Transaction {
     private final Account from;
     private final Account to;
@@ -17,12 +20,18 @@ public class TransferTx extends Transaction {
     }
 
     @Override
-    Transaction.Result doYourThing(Ledger.State state) {
+    Transaction.Result doYourThing(Ledger.TxState state) {
         boolean success = transfer(state);
 
         return new Result(success);
     }
 
+    @Override
+    public void forEachAccessedAccount(IntSupplier newAccountId, IntConsumer action) {
+        action.accept(from.getId());
+        action.accept(to.getId());
+    }
+
     @Override
     void addToMsg(Tx.Builder txBuilder) {
         txBuilder.getTransferBuilder()
@@ -36,7 +45,7 @@ public class TransferTx extends Transaction {
         return super.toString() + "Transfer[" + from + "->" + to + "]+" + amount;
     }
 
-    private boolean transfer(Ledger.State state) {
+    private boolean transfer(Ledger.TxState state) {
         if (state.subtract(from, amount)) {
             if (state.add(to, amount)) {
                 return true;
@@ -5,8 +5,6 @@ import lombok.Data;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Objects;
-
 @Data
 public class TxId {
     private static final String SEPARATOR = "-";
@@ -46,6 +44,13 @@ public class TxId {
         return txIdx;
     }
 
+    /**
+     * @return the {@link BlockId#toLong()} key of the block of this tx
+     */
+    public long blockKey() {
+        return BlockId.toLong(serverId, blockIdx);
+    }
+
     public boolean equals(TxId other) {
         return this.serverId == other.serverId &&
                 this.blockIdx == other.blockIdx &&
@@ -68,6 +73,6 @@ public class TxId {
 
     @Override
     public int hashCode() {
-        return Objects.hash(serverId, blockIdx, txIdx);
+        return 31 * (31 * serverId + blockIdx) + txIdx; // no varargs array, unlike Objects.hash
     }
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+package Blockchain;
+
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Status of the applied txs, off-heap, with a record per block:
+ * {@code [txCount, newAccounts][committed bits as longs][txIdx, newAccountId]*}, the new accounts
+ * ascending by tx index.
+ * <p>
+ * Records are appended to direct chunks that never move. They are found through an open-addressing
+ * (linear probing) table of {@code [BlockId#toLong() + 1, position]} long pairs, also direct.
+ * <p>
+ * A single writer, readers take no lock: a record is written before its key is published with
+ * release semantics, and a full table is replaced by a bigger copy, the old one is left untouched.
+ */
+class TxStatusIndex {
+    private static final int CHUNK_BYTES      = 1 << 20;
+    private static final int MIN_CAPACITY     = 1 << 12; // in pairs
+    private static final int MAX_LOAD_PERCENT = 50;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final class Table {
+        final ByteBuffer slots;
+        final int        capacity; // a power of 2
+
+        Table(int capacity) {
+            this.capacity = capacity;
+            slots = ByteBuffer.allocateDirect(capacity * 2 * Long.BYTES).order(ByteOrder.nativeOrder());
+        }
+
+        int home(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ h >>> 32) & (capacity - 1);
+        }
+
+        // slot of key, or the free slot where it should be inserted (encoded as -(slot + 1))
+        int find(long key) {
+            for (int slot = home(key); ; slot = (slot + 1) & (capacity - 1)) {
+                long stored = (long) LONGS.getAcquire(slots, slot * 2 * Long.BYTES);
+                if (stored == key + 1) return slot;
+                if (stored == 0) return -(slot + 1);
+            }
+        }
+
+        void put(int slot, long key, long position) {
+            slots.putLong((slot * 2 + 1) * Long.BYTES, position);
+            LONGS.setRelease(slots, slot * 2 * Long.BYTES, key + 1); // publishes the position
+        }
+
+        long position(int slot) {
+            return slots.getLong((slot * 2 + 1) * Long.BYTES);
+        }
+    }
+
+    private volatile Table        table  = new Table(MIN_CAPACITY);
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0]; // grows by copy
+
+    // only from the writer
+    private int size     = 0;
+    private int writePos = CHUNK_BYTES; // in the last chunk
+
+    private static int recordBytes(int txCount, int newAccounts) {
+        return 2 * Integer.BYTES + ((txCount + 63) >>> 6) * Long.BYTES + newAccounts * 2 * Integer.BYTES;
+    }
+
+    /**
+     * Adds the statuses of an applied block, from the single writer.
+     */
+    void add(ArchivedBlock block) {
+        int   txCount       = block.getTxCount();
+        int[] newAccountTxs = block.getNewAccountTxs();
+        int[] newAccountIds = block.getNewAccountIds();
+        int   bytes         = recordBytes(txCount, newAccountTxs.length);
+
+        ByteBuffer[] current = chunks;
+        if (current.length == 0 || writePos + bytes > current[current.length - 1].capacity()) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = ByteBuffer.allocateDirect(Math.max(CHUNK_BYTES, bytes))
+                                                    .order(ByteOrder.nativeOrder());
+            chunks = current;
+            writePos = 0;
+        }
+
+        ByteBuffer chunk = current[current.length - 1];
+        int        pos   = writePos;
+        chunk.putInt(pos, txCount);
+        chunk.putInt(pos + Integer.BYTES, newAccountTxs.length);
+        long[] words = block.getCommitted().toLongArray();
+        int    at    = pos + 2 * Integer.BYTES;
+        for (int w = 0; w < (txCount + 63) >>> 6; w++, at += Long.BYTES) {
+            chunk.putLong(at, w < words.length ? words[w] : 0);
+        }
+        for (int i = 0; i < newAccountTxs.length; i++, at += 2 * Integer.BYTES) {
+            chunk.putInt(at, newAccountTxs[i]);
+            chunk.putInt(at + Integer.BYTES, newAccountIds[i]);
+        }
+        writePos = (pos + bytes + Long.BYTES - 1) & -Long.BYTES; // keeps the longs aligned
+
+        long  key  = block.getId().toLong();
+        Table t    = table;
+        int   slot = t.find(key);
+        if (slot >= 0) return; // already there
+
+        t.put(-(slot + 1), key, (long) (current.length - 1) << 32 | pos);
+        if (++size * 100 > t.capacity * MAX_LOAD_PERCENT) {
+            resize(t, t.capacity << 1);
+        }
+    }
+
+    private void resize(Table old, int newCapacity) {
+        var bigger = new Table(newCapacity);
+        for (int slot = 0; slot < old.capacity; slot++) {
+            long stored = old.slots.getLong(slot * 2 * Long.BYTES);
+            if (stored == 0) continue;
+
+            bigger.put(-(bigger.find(stored - 1) + 1), stored - 1, old.position(slot));
+        }
+        table = bigger;
+    }
+
+    /**
+     * @return null if the block of txId wasn't added, or has no such tx
+     */
+    @Nullable
+    Transaction.Result get(TxId txId) {
+        Table t    = table;
+        int   slot = t.find(txId.blockKey());
+        if (slot < 0) return null;
+
+        long       position = t.position(slot);
+        ByteBuffer chunk    = chunks[(int) (position >>> 32)];
+        int        pos      = (int) position;
+
+        int txIdx   = txId.getTxIdx();
+        int txCount = chunk.getInt(pos);
+        if (txIdx < 0 || txIdx >= txCount) return null;
+
+        // new accounts, binary search
+        int newAccounts = chunk.getInt(pos + Integer.BYTES);
+        int pairs       = pos + 2 * Integer.BYTES + ((txCount + 63) >>> 6) * Long.BYTES;
+        for (int lo = 0, hi = newAccounts - 1; lo <= hi; ) {
+            int mid    = (lo + hi) >>> 1;
+            int midIdx = chunk.getInt(pairs + mid * 2 * Integer.BYTES);
+            if (midIdx == txIdx) {
+                return NewAccountTx.Result.of(Account.from(chunk.getInt(pairs + mid * 2 * Integer.BYTES
+                                                                         + Integer.BYTES)));
+            }
+            if (midIdx < txIdx) lo = mid + 1;
+            else hi = mid - 1;
+        }
+
+        long word = chunk.getLong(pos + 2 * Integer.BYTES + (txIdx >>> 6) * Long.BYTES);
+        return Transaction.Result.of((word & 1L << txIdx) != 0);
+    }
+}
@@ -1,6 +1,8 @@
 package Blockchain;
 
 import ServerCommunication.BlockId;
+import ServerCommunication.ChainCheckpoint;
+import ServerCommunication.OrderingRecord;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.FileAppender;
@@ -12,35 +14,94 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 
-public class ZooKeeperClient implements Watcher {
+public class ZooKeeperClient implements Watcher, CoordinationService {
 
     private final InetSocketAddress zkAddress = SocketAddressFactory.from("127.0.0.1",
                                                                           2181);
 
-    private static final String    blockchainRootPath = "/Blockchain";
-    private static final String    membershipRootPath = "/Membership";
+    private static final String    membershipRootPath  = "/Membership";
+    private final        String    chainRootPath;       // the znodes chaining blocks, in order
+    private final        String    checkpointsRootPath; // the compacted ones
     private final        String    membershipPath;
     private final        Server    server;
     private              ZooKeeper zk;
-    private              Integer   lastSeenBlock      = -1;
+
+    private volatile Set<Integer> members = Set.of(); // including this server
+
+    // Chain reading, only from the event thread. Znodes are read asynchronously and their
+    // callbacks come back in order, so many reads are in flight and no one waits for them.
+    private          int lastSeenBlock = -1; // znode sequence number
+    private          int lastRequested = -1; // the last sequence number read or being read
+    private          int nextChainIdx  = 0;  // a znode chains several blocks
+    private volatile int generation    = 0;  // reads of older generations are ignored, bumped on resyncs
+
+    // The oldest znodes are folded into checkpoints, recent ones are left to the readers keeping up
+    private static final int KEEP_ZNODES    = 1000;
+    private static final int COMPACT_ZNODES = 500; // per checkpoint
+
+    private static final long RESYNC_DELAY_MS = 1000;
+
+    private static class ChainedZnode {
+        final int           firstChainIdx;
+        final List<BlockId> ids;
+
+        ChainedZnode(int firstChainIdx, List<BlockId> ids) {
+            this.firstChainIdx = firstChainIdx;
+            this.ids = ids;
+        }
+    }
+
+    private final TreeMap<Integer, ChainedZnode> recent     = new TreeMap<>(); // read, not compacted
+    private       boolean                        compacting = false;
+
+    // blocks waiting to be ordered, coalesced into one znode while a write is in flight
+    private final int                 maxOrderingBatch;
+    private final ArrayDeque<BlockId> toOrder  = new ArrayDeque<>();
+    private       boolean             ordering = false; // guarded by toOrder
 
     private static void LOG(Object msg) {
         System.out.println("[ZkClient] " + msg);
     }
 
-    ZooKeeperClient(@NotNull Server server) {
+    ZooKeeperClient(@NotNull Server server, int maxOrderingBatch) {
+        this(server, maxOrderingBatch, "/Blockchain", "/BlockchainCheckpoints");
+    }
+
+    /**
+     * @param chainRootPath       where the znodes chaining the blocks are created, with consecutive
+     *                            10 digits names
+     * @param checkpointsRootPath where they are compacted
+     */
+    ZooKeeperClient(@NotNull Server server,
+                    int maxOrderingBatch,
+                    @NotNull String chainRootPath,
+                    @NotNull String checkpointsRootPath) {
         try {
             BasicConfigurator.configure(new FileAppender(new SimpleLayout(), "/dev/null"));
         } catch (IOException ignored) {
         }
 
         this.server = server;
+        this.maxOrderingBatch = maxOrderingBatch;
+        this.chainRootPath = chainRootPath;
+        this.checkpointsRootPath = checkpointsRootPath;
         membershipPath = membershipRootPath + "/" + server.getId();
+    }
+
+    @Override
+    public void start() {
         LOG(zkAddress);
         try {
             zk = createZooKeeper();
@@ -50,6 +111,15 @@ public class ZooKeeperClient implements Watcher {
         }
     }
 
+    @Override
+    public void close() {
+        try {
+            if (zk != null) zk.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void init() throws KeeperException, InterruptedException {
         LOG("init");
         // Try to create the membership first block if not exist
@@ -69,17 +139,72 @@ public class ZooKeeperClient implements Watcher {
             // It's OK
         }
 
+        updateMembership();
+        initOrdering();
+    }
+
+    /**
+     * Called once connected and registered as a member, starts reading the order.
+     */
+    void initOrdering() throws KeeperException, InterruptedException {
         // Try to create the blockchain first block if not exist
         try {
-            zk.create(blockchainRootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.create(chainRootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ignored) {
+            // It's OK
+        }
+
+        try {
+            zk.create(checkpointsRootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
         } catch (KeeperException.NodeExistsException ignored) {
             // It's OK
         }
 
-        updateMembership();
         updateBlockchain();
     }
 
+    /**
+     * Called when the children of a watched znode other than the membership one changed.
+     */
+    void onChildrenChanged(String path) {
+        if (path.equals(chainRootPath)) {
+            updateBlockchain();
+        }
+    }
+
+    /**
+     * @return the blocks chained by a znode under the chain root
+     */
+    List<BlockId> parseZnode(String path, byte[] data) {
+        try {
+            List<BlockId> ids = OrderingRecord.parseFrom(data).getIdsList();
+            return ids.isEmpty() ? List.of(BlockId.parseFrom(data)) : ids;
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("corrupted znode " + path, e);
+        }
+    }
+
+    /**
+     * Called from the event thread once the blocks of the znodes up to seq were chained, in order.
+     */
+    void onChained(int seq, List<BlockId> blockIds) {
+    }
+
+    ZooKeeper zk() {
+        return zk;
+    }
+
+    Server server() {
+        return server;
+    }
+
+    /**
+     * @return the ids of the live servers, including this one
+     */
+    Set<Integer> members() {
+        return members;
+    }
+
     @NotNull
     private byte[] getMembershipData() {
         return server.getServerAddress().toString().getBytes();
@@ -98,19 +223,15 @@ public class ZooKeeperClient implements Watcher {
         return "";
     }
 
-    private BlockId getBlockId(int blockIdx) {
-        return getBlockId(String.format("%010d", blockIdx));
+    String znodePath(int seq) {
+        return chainRootPath + "/" + String.format("%010d", seq);
     }
 
-    private BlockId getBlockId(String blockIdx) {
-        String blockPath = blockchainRootPath + "/" + blockIdx;
-        try {
-            return BlockId.parseFrom(getData(blockPath).getBytes());
-        } catch (InvalidProtocolBufferException ignored) {
-            throw new RuntimeException();
-        }
+    private String checkpointPath(int lastSeq) {
+        return checkpointsRootPath + "/" + String.format("%010d", lastSeq);
     }
 
+    @Override
     public InetSocketAddress getServerMembershipData(Integer serverId) {
         String memberPath = membershipRootPath + "/" + serverId;
         return SocketAddressFactory.from(getData(memberPath));
@@ -121,6 +242,7 @@ public class ZooKeeperClient implements Watcher {
         List<String> children;
         LOG("updateMembership");
         children = zk.getChildren(membershipRootPath, true);
+        members = children.stream().map(Integer::parseInt).collect(Collectors.toSet());
 
         Set<Integer> view = children.stream()
                                     .map(Integer::parseInt)
@@ -130,36 +252,236 @@ public class ZooKeeperClient implements Watcher {
         server.onMembershipChange(view);
     }
 
-    void postBlock(BlockId blockId) {
-        LOG("postBlock " + blockId);
-        // Try to create the znode of this block under /Blockchain.
-        zk.create(blockchainRootPath + "/",
-                  blockId.toByteArray(),
+    /**
+     * Orders the block. Blocks posted while a write is in flight are chained together by the next one.
+     */
+    @Override
+    public void postBlock(BlockId blockId) {
+        synchronized (toOrder) {
+            toOrder.add(blockId);
+            if (ordering) return;
+            ordering = true;
+        }
+        postNextBlocks();
+    }
+
+    private void postNextBlocks() {
+        var record = OrderingRecord.newBuilder();
+        synchronized (toOrder) {
+            while (!toOrder.isEmpty() && record.getIdsCount() < maxOrderingBatch) {
+                record.addIds(toOrder.poll());
+            }
+            if (record.getIdsCount() == 0) {
+                ordering = false;
+                return;
+            }
+        }
+
+        List<BlockId> blockIds = record.getIdsList();
+        LOG("postBlock " + blockIds);
+        // Try to create the znode of these blocks under /Blockchain.
+        zk.create(chainRootPath + "/",
+                  record.build().toByteArray(),
                   ZooDefs.Ids.OPEN_ACL_UNSAFE,
                   CreateMode.PERSISTENT_SEQUENTIAL,
                   (rc, path, ctx, name) -> {
                       if (rc != KeeperException.Code.OK.intValue()) {
-                          server.onBlockChainError(blockId);
+                          blockIds.forEach(server::onBlockChainError);
+                      } else {
+                          String idx = name.substring(chainRootPath.length() + 1);
+                          LOG("CHAINED! " + blockIds.size() + " blocks, znode=" + idx);
                       }
-
-                      String idx = name.substring(blockchainRootPath.length() + 1);
-                      LOG("CHAINED! " + blockId + " idx=" +idx);
+                      postNextBlocks();
                   },
                   null);
     }
 
-    synchronized
-    private void updateBlockchain() throws KeeperException, InterruptedException {
+    private void updateBlockchain() {
+        // the watch is set again once the applier caught up, back on the event thread
+        if (server.deferChaining(() -> zk.sync(chainRootPath, (rc, path, ctx) -> updateBlockchain(), null))) {
+            LOG("the applier is behind, reading new blocks once it caught up");
+            return;
+        }
         LOG("updateBlockchain");
-        zk.getChildren(blockchainRootPath, true)
-          .stream()
-          .map(Integer::parseInt)
-          .filter(blockIdx -> blockIdx > lastSeenBlock)
-          .sorted()
-          .forEachOrdered(blockIdx -> {
-              server.onBlockChained(getBlockId(blockIdx), blockIdx);
-              lastSeenBlock = blockIdx;
-          });
+        final int gen = generation;
+        zk.getChildren(chainRootPath, true, (rc, path, ctx, children) -> guard(path, () -> {
+            if (gen != generation) return;
+            if (rc != KeeperException.Code.OK.intValue()) {
+                LOG("can't list " + path + ": " + KeeperException.Code.get(rc));
+                return;
+            }
+
+            List<Integer> seqs = children.stream().map(Integer::parseInt).sorted().collect(Collectors.toList());
+            if (seqs.isEmpty() || seqs.get(seqs.size() - 1) <= lastRequested) return;
+
+            if (seqs.get(0) > lastRequested) {
+                // the next znodes we need may be compacted already
+                readCheckpoints(gen, () -> readZnodes(gen, seqs));
+            } else {
+                readZnodes(gen, seqs);
+            }
+        }), null);
+    }
+
+    private void readCheckpoints(int gen, Runnable then) {
+        zk.getChildren(checkpointsRootPath, false, (rc, path, ctx, children) -> guard(path, () -> {
+            if (gen != generation) return;
+            if (rc != KeeperException.Code.OK.intValue()) {
+                LOG("can't list " + path + ": " + KeeperException.Code.get(rc));
+                return;
+            }
+
+            children.stream()
+                    .map(Integer::parseInt)
+                    .filter(lastSeq -> lastSeq > lastRequested)
+                    .sorted()
+                    .forEachOrdered(lastSeq -> {
+                        zk.getData(checkpointPath(lastSeq), false, (rc1, path1, ctx1, data, stat) -> guard(path1, () -> {
+                            if (gen != generation) return;
+                            if (rc1 != KeeperException.Code.OK.intValue()) {
+                                resync(path1, rc1);
+                                return;
+                            }
+                            try {
+                                onCheckpoint(ChainCheckpoint.parseFrom(data));
+                            } catch (InvalidProtocolBufferException e) {
+                                throw new RuntimeException("corrupted checkpoint " + path1, e);
+                            }
+                        }), null);
+                        lastRequested = lastSeq;
+                    });
+            then.run();
+        }), null);
+    }
+
+    private void readZnodes(int gen, List<Integer> seqs) {
+        for (int seq : seqs) {
+            if (seq <= lastRequested) continue;
+
+            zk.getData(znodePath(seq), false, (rc, path, ctx, data, stat) -> guard(path, () -> {
+                if (gen != generation) return;
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    resync(path, rc); // e.g. compacted before we read it
+                    return;
+                }
+                onZnode(seq, parseZnode(path, data));
+            }), null);
+            lastRequested = seq;
+        }
+    }
+
+    // drops the reads in flight and starts over from the last znode chained
+    private void resync(String path, int rc) {
+        LOG("can't read " + path + ": " + KeeperException.Code.get(rc) + ", reading again");
+        ++generation;
+        lastRequested = lastSeenBlock;
+        updateBlockchain();
+    }
+
+    // a callback throwing would silently end the chain reading, start over a bit later instead
+    private void guard(String path, Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            LOG("failed on " + path + ": " + e + ", reading again in " + RESYNC_DELAY_MS + "ms");
+            ++generation;
+            lastRequested = lastSeenBlock;
+            CompletableFuture.delayedExecutor(RESYNC_DELAY_MS, TimeUnit.MILLISECONDS)
+                             .execute(this::updateBlockchain);
+        }
+    }
+
+    private void onZnode(int seq, List<BlockId> blockIds) {
+        if (seq <= lastSeenBlock) return;
+
+        recent.put(seq, new ChainedZnode(nextChainIdx, blockIds));
+        chain(blockIds);
+        lastSeenBlock = seq;
+        onChained(seq, blockIds);
+
+        compactIfNeeded();
+    }
+
+    private void onCheckpoint(ChainCheckpoint checkpoint) {
+        if (checkpoint.getLastSeq() <= lastSeenBlock) return;
+
+        int skip = nextChainIdx - checkpoint.getFirstChainIdx(); // chained already
+        if (skip < 0 || skip > checkpoint.getIdsCount()) {
+            throw new RuntimeException("checkpoint " + checkpoint.getLastSeq() + " starts at " +
+                                       checkpoint.getFirstChainIdx() + ", chain is at " + nextChainIdx);
+        }
+
+        var blockIds = checkpoint.getIdsList().subList(skip, checkpoint.getIdsCount());
+        chain(blockIds);
+        lastSeenBlock = checkpoint.getLastSeq();
+        recent.headMap(lastSeenBlock, true).clear();
+        onChained(lastSeenBlock, blockIds);
+    }
+
+    private void chain(List<BlockId> blockIds) {
+        // bring all the missing blocks at once, e.g. when catching up
+        server.prefetch(blockIds);
+
+        for (BlockId blockId : blockIds) {
+            server.onBlockChained(blockId, nextChainIdx++);
+        }
+    }
+
+    /**
+     * Folds the oldest znodes into a checkpoint with a single multi, done by the lowest member
+     * only. The multi fails as a whole if another member compacted them meanwhile. It also bumps the
+     * version of the checkpoints root, so a version 0 means nothing was ever compacted.
+     */
+    private void compactIfNeeded() {
+        if (compacting || recent.size() < KEEP_ZNODES + COMPACT_ZNODES) return;
+        if (members.isEmpty() || Collections.min(members) != server.getId()) return;
+
+        var checkpoint = ChainCheckpoint.newBuilder()
+                                        .setFirstSeq(recent.firstKey())
+                                        .setFirstChainIdx(recent.firstEntry().getValue().firstChainIdx);
+        var deletes    = new ArrayList<Op>();
+        for (Map.Entry<Integer, ChainedZnode> znode : recent.entrySet()) {
+            if (deletes.size() == COMPACT_ZNODES) break;
+            checkpoint.setLastSeq(znode.getKey()).addAllIds(znode.getValue().ids);
+            deletes.add(Op.delete(znodePath(znode.getKey()), -1));
+        }
+
+        final int lastSeq = checkpoint.getLastSeq();
+        var       ops     = new ArrayList<Op>();
+        ops.add(Op.create(checkpointPath(lastSeq),
+                          checkpoint.build().toByteArray(),
+                          ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT));
+        ops.addAll(deletes);
+        ops.add(Op.setData(checkpointsRootPath, new byte[0], -1));
+
+        compacting = true;
+        zk.multi(ops, (rc, path, ctx, opResults) -> {
+            var code = KeeperException.Code.get(rc);
+            LOG("compaction up to znode " + lastSeq + ": " + code);
+            if (code == KeeperException.Code.OK) {
+                recent.headMap(lastSeq, true).clear();
+                compacting = false;
+            } else {
+                forgetCompacted();
+            }
+        }, null);
+    }
+
+    /**
+     * The multi failed as a whole, maybe because someone else compacted a different range meanwhile:
+     * only the znodes that are gone are dropped, the next checkpoint starts right after them.
+     */
+    private void forgetCompacted() {
+        zk.getChildren(chainRootPath, false, (rc, path, ctx, children) -> guard(path, () -> {
+            compacting = false;
+            if (rc != KeeperException.Code.OK.intValue()) return; // tried again with the next znode
+
+            children.stream()
+                    .map(Integer::parseInt)
+                    .min(Integer::compare)
+                    .ifPresent(firstLeft -> recent.headMap(firstLeft, false).clear());
+        }), null);
     }
 
     @Override
@@ -184,9 +506,8 @@ public class ZooKeeperClient implements Watcher {
                                 event.getPath());
                     if (event.getPath().equals(membershipRootPath)) {
                         updateMembership();
-                    }
-                    if (event.getPath().equals(blockchainRootPath)) {
-                        updateBlockchain();
+                    } else {
+                        onChildrenChanged(event.getPath());
                     }
 
                     break;
@@ -0,0 +1,48 @@
+package Blockchain;
+
+import Blockchain.Transaction.NewAccountTx;
+import ServerCommunication.BlockEncoding;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ApplyPipelineTest {
+    private static final int MAX_QUEUED = 1 << 16;
+
+    private final CountDownLatch applied  = new CountDownLatch(MAX_QUEUED);
+    private final ApplyPipeline  pipeline = new ApplyPipeline(
+            blockKey -> CompletableFuture.completedFuture(
+                    BlockCodec.encode(BlockId.fromLong(blockKey), List.of(new NewAccountTx()), BlockEncoding.PROTO)),
+            ForkJoinPool.commonPool(),
+            (idx, block) -> applied.countDown(),
+            8);
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void aBackedUpQueueDefersReadersWithoutBlockingThem() throws InterruptedException {
+        assertFalse(pipeline.deferWhileBackedUp(() -> {}));
+
+        // not started yet, nothing is dispatched
+        for (int idx = 0; idx < MAX_QUEUED; idx++) {
+            pipeline.submit(BlockId.toLong(1, idx), idx);
+        }
+        var resumed = new CountDownLatch(1);
+        assertTrue(pipeline.deferWhileBackedUp(resumed::countDown));
+
+        pipeline.start();
+        assertTrue(resumed.await(10, TimeUnit.SECONDS));
+        assertTrue(applied.await(10, TimeUnit.SECONDS));
+    }
+}
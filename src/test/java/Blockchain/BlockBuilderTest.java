@@ -0,0 +1,30 @@
+package Blockchain;
+
+import Blockchain.Transaction.NewAccountTx;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class BlockBuilderTest {
+    private static final int MAX_TXS = 10;
+
+    @Test
+    public void appendsPastAFullBlockWaitForItsSeal() throws Exception {
+        var builder = new BlockBuilder(1, (txCount, byteSize) -> txCount >= MAX_TXS);
+        for (int i = 0; i < MAX_TXS; i++) {
+            builder.append(new NewAccountTx());
+        }
+
+        var late = CompletableFuture.supplyAsync(() -> builder.append(new NewAccountTx()));
+        Thread.sleep(100);
+        assertFalse(late.isDone());
+
+        assertEquals(MAX_TXS, builder.seal(0).size());
+        assertEquals(new TxId(1, 1, 0), late.get(5, TimeUnit.SECONDS));
+        assertEquals(1, builder.seal(0).size());
+    }
+}
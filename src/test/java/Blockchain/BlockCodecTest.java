@@ -0,0 +1,120 @@
+package Blockchain;
+
+import Blockchain.Transaction.DeleteAccountTx;
+import Blockchain.Transaction.DepositTx;
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import Blockchain.Transaction.TransferTx;
+import ServerCommunication.BlockEncoding;
+import ServerCommunication.ColumnarBlock;
+import ServerCommunication.EncodedBlock;
+import ServerCommunication.PushBlockReq;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlockCodecTest {
+    private static final int     N_TXS    = 100_000;
+    private static final int     N_IDS    = 1 << 20;
+    private static final BlockId BLOCK_ID = BlockId.from(1, 0);
+
+    @Test
+    public void everyEncodingRoundTrips() {
+        var txs = randomTxs(new Random(0));
+        for (BlockEncoding encoding : BlockCodec.SUPPORTED) {
+            var decoded = BlockCodec.decode(BlockCodec.encode(BLOCK_ID, txs, encoding));
+            assertEquals(txs.size(), decoded.size());
+            for (int i = 0; i < txs.size(); i++) {
+                assertEquals(txs.get(i).toTxMsg(), decoded.get(i).toTxMsg(), encoding + " tx " + i);
+            }
+        }
+    }
+
+    @Test
+    public void legacyBlockMsgsConvertBothWays() throws InvalidProtocolBufferException {
+        var txs     = randomTxs(new Random(2)).subList(0, 100);
+        var encoded = BlockCodec.encode(BLOCK_ID, txs, BlockEncoding.PROTO);
+
+        // what a peer older than EncodedBlock sends and expects
+        var legacy = PushBlockReq.parseFrom(PushBlockReq.newBuilder()
+                                                        .setLegacyBlock(BlockCodec.toBlockMsg(BLOCK_ID, txs))
+                                                        .build()
+                                                        .toByteArray());
+        assertEquals(encoded, BlockCodec.fromLegacy(legacy.getLegacyBlock()));
+        assertEquals(BlockCodec.toBlockMsg(BLOCK_ID, txs), BlockCodec.toLegacy(encoded));
+    }
+
+    @Test
+    public void columnarEncodingsAreSmaller() {
+        var txs      = randomTxs(new Random(1));
+        int proto    = BlockCodec.encode(BLOCK_ID, txs, BlockEncoding.PROTO).getBlock().size();
+        int columnar = BlockCodec.encode(BLOCK_ID, txs, BlockEncoding.COLUMNAR).getBlock().size();
+        int deflated = BlockCodec.encode(BLOCK_ID, txs, BlockEncoding.COLUMNAR_DEFLATE).getBlock().size();
+        System.out.println(String.format("%d txs: PROTO %d bytes, COLUMNAR %d%%, COLUMNAR_DEFLATE %d%%",
+                                         N_TXS, proto, 100 * columnar / proto, 100 * deflated / proto));
+
+        assertTrue(columnar < proto, columnar + " >= " + proto);
+        assertTrue(deflated < columnar, deflated + " >= " + columnar);
+    }
+
+    @Test
+    public void unknownTxTypeIsACorruptedBlock() {
+        var columnar = ColumnarBlock.newBuilder()
+                                    .setId(BLOCK_ID.toBlockIdMsg())
+                                    .setTypes(ByteString.copyFrom(new byte[]{42}))
+                                    .build();
+        var encoded = EncodedBlock.newBuilder()
+                                  .setId(BLOCK_ID.toBlockIdMsg())
+                                  .setEncoding(BlockEncoding.COLUMNAR)
+                                  .setBlock(columnar.toByteString())
+                                  .build();
+        assertCorrupted(encoded);
+    }
+
+    @Test
+    public void missingColumnIsACorruptedBlock() {
+        var deposit  = new DepositTx(Account.from(1), 5).toTxMsg();
+        var columnar = ColumnarBlock.newBuilder()
+                                    .setId(BLOCK_ID.toBlockIdMsg())
+                                    .setTypes(ByteString.copyFrom(new byte[]{(byte) deposit.getTxTypeCase().getNumber()}))
+                                    .addAccounts(1)
+                                    .build();
+        var encoded = EncodedBlock.newBuilder()
+                                  .setId(BLOCK_ID.toBlockIdMsg())
+                                  .setEncoding(BlockEncoding.COLUMNAR)
+                                  .setBlock(columnar.toByteString())
+                                  .build();
+        assertCorrupted(encoded);
+    }
+
+    private static void assertCorrupted(EncodedBlock encoded) {
+        var e = assertThrows(RuntimeException.class, () -> BlockCodec.decode(encoded));
+        assertTrue(e.getCause() instanceof InvalidProtocolBufferException, e.toString());
+    }
+
+    private static List<Transaction> randomTxs(Random random) {
+        List<Transaction> txs = new ArrayList<>(N_TXS);
+        for (int i = 0; i < N_TXS; i++) {
+            Account account = Account.from(1 + random.nextInt(N_IDS));
+            int     kind    = random.nextInt(100);
+            if (kind < 5) {
+                txs.add(new NewAccountTx());
+            } else if (kind < 10) {
+                txs.add(new DeleteAccountTx(account));
+            } else if (kind < 40) {
+                txs.add(new DepositTx(account, random.nextInt(1000)));
+            } else {
+                txs.add(new TransferTx(account, Account.from(1 + random.nextInt(N_IDS)), random.nextInt(1000)));
+            }
+        }
+        return txs;
+    }
+}
@@ -0,0 +1,100 @@
+package Blockchain;
+
+import Blockchain.Transaction.DeleteAccountTx;
+import Blockchain.Transaction.DepositTx;
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import Blockchain.Transaction.TransferTx;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BlockExecutorTest {
+    private static final int N_ACCOUNTS = 64;
+    private static final int N_TXS      = 4096;
+    private static final int N_GROUPS   = 16; // transfers stay between ids equal modulo it
+
+    private final ForkJoinPool parallelPool   = new ForkJoinPool(4);
+    private final ForkJoinPool sequentialPool = new ForkJoinPool(1);
+
+    @After
+    public void tearDown() {
+        parallelPool.shutdownNow();
+        sequentialPool.shutdownNow();
+    }
+
+    @Test
+    public void parallelRunMatchesSequentialRun() {
+        var parallel   = new BlockExecutor(parallelPool);
+        var sequential = new BlockExecutor(sequentialPool);
+
+        for (long seed = 0; seed < 8; seed++) {
+            Ledger.State parallelState   = new Ledger(Ledger.Backend.TABLE).published().fork();
+            Ledger.State sequentialState = parallelState.fork();
+
+            var setup = setupBlock();
+            assertSameResults(sequential.execute(setup, sequentialState), parallel.execute(setup, parallelState));
+
+            var txs = conflictingBlock(new Random(seed));
+            assertSameResults(sequential.execute(txs, sequentialState), parallel.execute(txs, parallelState));
+
+            assertEquals(sequentialState.getLastId(), parallelState.getLastId());
+            assertEquals(sequentialState.getAccounts(), parallelState.getAccounts());
+            for (Account account : sequentialState.getAccounts()) {
+                assertEquals(sequentialState.get(account), parallelState.get(account), "balance of " + account);
+            }
+        }
+    }
+
+    private static List<Transaction> setupBlock() {
+        List<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < N_ACCOUNTS; i++) {
+            txs.add(new NewAccountTx());
+        }
+        for (int id = 1; id <= N_ACCOUNTS; id++) {
+            txs.add(new DepositTx(Account.from(id), 100));
+        }
+        return txs;
+    }
+
+    // new accounts get ids past N_ACCOUNTS, later transactions use them, some use deleted ones
+    private static List<Transaction> conflictingBlock(Random random) {
+        List<Transaction> txs   = new ArrayList<>();
+        int               maxId = N_ACCOUNTS;
+        for (int i = 0; i < N_TXS; i++) {
+            int from = 1 + random.nextInt(maxId);
+            int kind = random.nextInt(100);
+            if (kind < 5) {
+                txs.add(new NewAccountTx());
+                ++maxId;
+            } else if (kind < 8) {
+                txs.add(new DeleteAccountTx(Account.from(from)));
+            } else if (kind < 20) {
+                txs.add(new DepositTx(Account.from(from), random.nextInt(50)));
+            } else {
+                int to = from % N_GROUPS + N_GROUPS * random.nextInt(maxId / N_GROUPS);
+                if (to == 0) to = N_GROUPS;
+                txs.add(new TransferTx(Account.from(from), Account.from(to), random.nextInt(120)));
+            }
+        }
+        return txs;
+    }
+
+    private static void assertSameResults(Transaction.Result[] expected, Transaction.Result[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].isCommitted(), actual[i].isCommitted(), "tx " + i);
+            if (expected[i] instanceof NewAccountTx.Result) {
+                assertEquals(((NewAccountTx.Result) expected[i]).getNewAccount().getId(),
+                             ((NewAccountTx.Result) actual[i]).getNewAccount().getId(),
+                             "tx " + i);
+            }
+        }
+    }
+}
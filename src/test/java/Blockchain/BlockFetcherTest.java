@@ -0,0 +1,61 @@
+package Blockchain;
+
+import Blockchain.Transaction.NewAccountTx;
+import ServerCommunication.BlockEncoding;
+import ServerCommunication.EncodedBlock;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlockFetcherTest {
+    private static final int N_BLOCKS = 100;
+
+    private final ConcurrentLongMap<EncodedBlock> received = new ConcurrentLongMap<>();
+    private final BlockFetcher                    fetcher  =
+            new BlockFetcher(List::of, received, Duration.ofMillis(10)); // no peer, fetches wait
+
+    @After
+    public void tearDown() {
+        fetcher.shutdown();
+    }
+
+    @Test
+    public void prefetchedBlocksAreTakenOnceChained() {
+        var blockIds = new ArrayList<ServerCommunication.BlockId>();
+        for (int serial = 0; serial < N_BLOCKS; serial++) {
+            blockIds.add(BlockId.from(1, serial).toBlockIdMsg());
+        }
+        fetcher.prefetch(blockIds);
+
+        // half received before they are chained, half after
+        var taken = new ArrayList<CompletableFuture<EncodedBlock>>();
+        for (int serial = 0; serial < N_BLOCKS; serial++) {
+            long blockKey = BlockId.toLong(1, serial);
+            if (serial % 2 == 0) {
+                fetcher.offer(blockKey, encoded(serial));
+                taken.add(fetcher.take(blockKey));
+            } else {
+                taken.add(fetcher.take(blockKey));
+                fetcher.offer(blockKey, encoded(serial));
+            }
+            fetcher.offer(blockKey, encoded(serial)); // a late answer of another peer
+        }
+
+        for (int serial = 0; serial < N_BLOCKS; serial++) {
+            assertTrue(taken.get(serial).isDone(), "block " + serial);
+            assertEquals(BlockId.from(1, serial).toBlockIdMsg(), taken.get(serial).join().getId());
+        }
+        assertEquals(0, received.size());
+    }
+
+    private static EncodedBlock encoded(int serial) {
+        return BlockCodec.encode(BlockId.from(1, serial), List.of(new NewAccountTx()), BlockEncoding.PROTO);
+    }
+}
@@ -0,0 +1,39 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ClockCacheTest {
+    @Test
+    public void readEntriesGetASecondChance() {
+        var cache = new ClockCache<Integer, String>(4);
+        cache.putAll(Map.of(0, "0", 1, "1", 2, "2", 3, "3"));
+        assertEquals("0", cache.get(0));
+        assertEquals("2", cache.get(2));
+
+        cache.putAll(Map.of(4, "4", 5, "5"));
+        assertEquals("0", cache.get(0));
+        assertEquals("2", cache.get(2));
+        assertEquals("4", cache.get(4));
+        assertEquals("5", cache.get(5));
+        assertNull(cache.get(1));
+        assertNull(cache.get(3));
+    }
+
+    @Test
+    public void removedEntriesFreeTheirSlot() {
+        var cache = new ClockCache<Integer, String>(2);
+        cache.putAll(Map.of(0, "0", 1, "1"));
+        cache.get(0);
+        cache.get(1);
+        assertEquals("1", cache.remove(1));
+
+        cache.putAll(Map.of(2, "2"));
+        assertEquals("0", cache.get(0));
+        assertEquals("2", cache.get(2));
+    }
+}
@@ -0,0 +1,62 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConcurrentLongMapTest {
+    @Test
+    public void matchesAHashMapThroughGrowthAndRemovals() {
+        var map      = new ConcurrentLongMap<Long>();
+        var expected = new HashMap<Long, Long>();
+        var random   = new Random(7);
+
+        for (int i = 0; i < 100_000; i++) {
+            long key = BlockId.toLong(random.nextInt(4), random.nextInt(1 << 12));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        map.forEachKey(key -> assertEquals(expected.get(key), map.get(key)));
+    }
+
+    @Test
+    public void removesTheMatchingKeys() {
+        var map = new ConcurrentLongMap<String>();
+        for (int serial = 0; serial < 100; serial++) {
+            map.put(BlockId.toLong(1, serial), "1");
+            map.put(BlockId.toLong(2, serial), "2");
+        }
+        assertEquals("1", map.putIfAbsent(BlockId.toLong(1, 0), "other"));
+
+        map.removeIf(key -> BlockId.fromLong(key).getServerId() == 1);
+        assertEquals(100, map.size());
+        assertNull(map.get(BlockId.toLong(1, 0)));
+        assertEquals("2", map.get(BlockId.toLong(2, 99)));
+        assertFalse(map.containsKey(BlockId.toLong(1, 99)));
+    }
+
+    @Test
+    public void removesOnlyTheGivenValue() {
+        var map   = new ConcurrentLongMap<String>();
+        var value = "value";
+        map.put(1, value);
+
+        assertFalse(map.remove(1, "other"));
+        assertFalse(map.remove(2, value));
+        assertEquals(value, map.get(1));
+        assertTrue(map.remove(1, value));
+        assertNull(map.get(1));
+    }
+}
@@ -0,0 +1,175 @@
+package Blockchain;
+
+import Blockchain.Batch.SizeBoundedBatching;
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InProcessClusterTest {
+    private static final int N_SERVERS          = 3;
+    private static final int BASE_PORT          = 46000;
+    private static final int POLLING_DELAY_MS   = 50;
+    private static final int POLLING_ITERATIONS = 20 * 10;
+    private static final int PIPELINE_DEPTH     = 4;
+
+    private final InProcessSequencer sequencer = new InProcessSequencer();
+    private final List<Server>       servers   = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int id = 1; id <= N_SERVERS; id++) {
+            servers.add(startServer(id, false));
+        }
+    }
+
+    private Server startServer(int id, boolean stateTransfer) throws IOException {
+        return startServer(id, stateTransfer, PIPELINE_DEPTH, sequencer.member());
+    }
+
+    private Server startServer(int id,
+                               boolean stateTransfer,
+                               int pipelineDepth,
+                               Function<Server, CoordinationService> coordination) throws IOException {
+        return new ServerBuilder().setId(id)
+                                  .setServerAddress(new InetSocketAddress("localhost", BASE_PORT + id))
+                                  .setBatchingStrategy(new SizeBoundedBatching(Duration.ofMillis(10),
+                                                                               1 << 10,
+                                                                               1 << 20))
+                                  .setFaultSetSize(1)
+                                  .setPipelineDepth(pipelineDepth)
+                                  .setCoordination(coordination)
+                                  .setStateTransfer(stateTransfer)
+                                  .createServer()
+                                  .start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        servers.forEach(Server::shutdown);
+        for (Server server : servers) {
+            server.awaitTermination(); // frees its port for the next test
+        }
+    }
+
+    @Test
+    public void allServersApplyTheSameChain() throws InterruptedException {
+        var accounts = new ArrayList<Account>();
+        for (Server server : servers) {
+            accounts.add(((NewAccountTx.Result) pollStatus(server, server.createAccount())).getNewAccount());
+        }
+
+        var deposits = new ArrayList<TxId>();
+        for (int i = 0; i < 100; i++) {
+            Server server = servers.get(i % N_SERVERS);
+            deposits.add(server.addAmount(accounts.get(i % accounts.size()), 10));
+        }
+        for (int i = 0; i < deposits.size(); i++) {
+            assertTrue(pollStatus(servers.get(i % N_SERVERS), deposits.get(i)).isCommitted());
+        }
+
+        int chainSize = sequencer.chainSize();
+        for (Server server : servers) {
+            for (int i = 0; i < POLLING_ITERATIONS &&
+                            server.getApplyMetrics().getAppliedBlocks() < chainSize; i++) {
+                Thread.sleep(POLLING_DELAY_MS);
+            }
+            assertEquals(chainSize, server.getApplyMetrics().getAppliedBlocks());
+
+            int total = 0;
+            for (Account account : accounts) {
+                total += server.getAmount(account);
+            }
+            assertEquals(1000, total);
+        }
+    }
+
+    @Test
+    public void lateServerStartsFromAPeerState() throws Exception {
+        var accounts = new ArrayList<Account>();
+        for (Server server : servers) {
+            accounts.add(((NewAccountTx.Result) pollStatus(server, server.createAccount())).getNewAccount());
+        }
+        for (int i = 0; i < accounts.size(); i++) {
+            assertTrue(pollStatus(servers.get(i), servers.get(i).addAmount(accounts.get(i), 10)).isCommitted());
+        }
+
+        Server late = startServer(N_SERVERS + 1, true);
+        servers.add(late);
+        assertTrue(pollStatus(late, late.addAmount(accounts.get(0), 10)).isCommitted());
+
+        int total = 0;
+        for (Account account : accounts) {
+            total += late.getAmount(account);
+        }
+        assertEquals(40, total);
+        assertTrue(late.getApplyMetrics().getAppliedBlocks() < sequencer.chainSize());
+    }
+
+    @Test
+    public void blocksAfterOneThatCantBePostedAreChained() throws Exception {
+        Server server = startServer(N_SERVERS + 1, false, 1, failingFirstPost(sequencer.member()));
+        servers.add(server);
+
+        TxId lost = server.createAccount();
+        Thread.sleep(20 * POLLING_DELAY_MS); // sealed alone, then dropped
+
+        // one block in flight at most, it's only sealed once the dropped one freed its slot
+        assertTrue(pollStatus(server, server.createAccount()).isCommitted());
+        assertNull(server.getTxStatus(lost));
+    }
+
+    private static Function<Server, CoordinationService> failingFirstPost(
+            Function<Server, CoordinationService> member) {
+        return server -> {
+            var coordination = member.apply(server);
+            var failed       = new AtomicBoolean(false);
+            return new CoordinationService() {
+                @Override
+                public void start() {
+                    coordination.start();
+                }
+
+                @Override
+                public void close() {
+                    coordination.close();
+                }
+
+                @Override
+                public void postBlock(ServerCommunication.BlockId blockId) {
+                    if (failed.compareAndSet(false, true)) throw new IllegalStateException("lost");
+                    coordination.postBlock(blockId);
+                }
+
+                @Override
+                public InetSocketAddress getServerMembershipData(Integer serverId) {
+                    return coordination.getServerMembershipData(serverId);
+                }
+            };
+        };
+    }
+
+    private static Transaction.Result pollStatus(Server server, TxId txId) throws InterruptedException {
+        Transaction.Result status = server.getTxStatus(txId);
+        for (int i = 0; status == null && i < POLLING_ITERATIONS; i++) {
+            Thread.sleep(POLLING_DELAY_MS);
+            status = server.getTxStatus(txId);
+        }
+        assertNotNull(status, "no status for " + txId);
+        return status;
+    }
+}
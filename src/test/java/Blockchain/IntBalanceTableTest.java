@@ -0,0 +1,154 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IntBalanceTableTest {
+    private static final int MIN_CAPACITY = 1 << 10; // of a new table, as IntBalanceTable's
+
+    @Test
+    public void matchesAHashMapThroughGrowthAndRemovals() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            var table    = new IntBalanceTable(offHeap);
+            var expected = new HashMap<Integer, Integer>();
+            var random   = new Random(11);
+
+            for (int i = 0; i < 200_000; i++) {
+                int id = random.nextInt(1 << 14) - (1 << 13);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(id) != null, table.remove(id));
+                } else {
+                    assertEquals(expected.put(id, i) == null, table.put(id, i));
+                }
+            }
+            assertSame(expected, table);
+        }
+    }
+
+    @Test
+    public void removalShiftsBackEntriesThatWrappedAround() {
+        // ids whose home is the last slot, and one whose home is the first: they wrap around
+        List<Integer> lastHome  = idsWithHome(MIN_CAPACITY - 1, 3);
+        int           firstHome = idsWithHome(0, 1).get(0);
+
+        var table = new IntBalanceTable(false);
+        lastHome.forEach(id -> table.put(id, id));
+        table.put(firstHome, firstHome); // after the ones that wrapped into slots 0 and 1
+
+        assertTrue(table.remove(lastHome.get(0)));
+        assertTrue(table.remove(lastHome.get(2)));
+        assertFalse(table.contains(lastHome.get(0)));
+        assertFalse(table.contains(lastHome.get(2)));
+        assertEquals((int) lastHome.get(1), table.get(lastHome.get(1)));
+        assertEquals(firstHome, table.get(firstHome));
+        assertEquals(2, table.size());
+
+        assertTrue(table.remove(lastHome.get(1)));
+        assertEquals(firstHome, table.get(firstHome));
+        assertTrue(table.remove(firstHome));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void forksDontSeeEachOthersWrites() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            var table    = new IntBalanceTable(offHeap);
+            var expected = new HashMap<Integer, Integer>();
+            for (int id = 0; id < 5000; id++) {
+                table.put(id, id);
+                expected.put(id, id);
+            }
+            var forks  = new ArrayList<IntBalanceTable>();
+            var states = new ArrayList<Map<Integer, Integer>>();
+
+            // a chain of forks as the ledger makes, each one changed a little, some grow
+            var random = new Random(3);
+            IntBalanceTable current = table;
+            for (int f = 0; f < 50; f++) {
+                forks.add(current);
+                states.add(new HashMap<>(expected));
+
+                current = current.fork();
+                for (int i = 0; i < 200; i++) {
+                    int id = random.nextInt(8000);
+                    if (random.nextBoolean()) {
+                        current.remove(id);
+                        expected.remove(id);
+                    } else {
+                        current.put(id, f);
+                        expected.put(id, f);
+                    }
+                }
+            }
+
+            assertSame(expected, current);
+            for (int f = 0; f < forks.size(); f++) {
+                assertSame(states.get(f), forks.get(f));
+            }
+        }
+    }
+
+    @Test
+    public void theForkedTableCanStillBeWritten() {
+        var table = new IntBalanceTable(true);
+        for (int id = 0; id < 1000; id++) {
+            table.put(id, 1);
+        }
+        var fork = table.fork();
+        for (int id = 0; id < 1000; id += 2) {
+            table.remove(id);
+            table.put(id + 1, 2);
+        }
+
+        assertEquals(1000, fork.size());
+        for (int id = 0; id < 1000; id++) {
+            assertEquals(1, fork.get(id));
+        }
+        assertEquals(500, table.size());
+        assertEquals(2, table.get(1));
+    }
+
+    @Test
+    public void minValueIsAnId() {
+        var table = new IntBalanceTable(false);
+        assertTrue(table.put(Integer.MIN_VALUE, 5));
+        var fork = table.fork();
+        assertTrue(fork.remove(Integer.MIN_VALUE));
+
+        assertTrue(table.contains(Integer.MIN_VALUE));
+        assertEquals(5, table.get(Integer.MIN_VALUE));
+        assertEquals(1, table.size());
+        assertFalse(fork.contains(Integer.MIN_VALUE));
+        assertEquals(0, fork.size());
+    }
+
+    private static void assertSame(Map<Integer, Integer> expected, IntBalanceTable table) {
+        assertEquals(expected.size(), table.size());
+        expected.forEach((id, balance) -> {
+            assertTrue(table.contains(id), "missing " + id);
+            assertEquals((int) balance, table.get(id));
+        });
+        var ids = new HashSet<Integer>();
+        table.forEach(id -> assertTrue(ids.add(id) && expected.containsKey(id), "unexpected " + id));
+    }
+
+    // the hash IntBalanceTable uses
+    private static List<Integer> idsWithHome(int home, int count) {
+        var ids = new ArrayList<Integer>();
+        for (int id = 1; ids.size() < count; id++) {
+            int h = id * 0x9E3779B9;
+            if (((h ^ h >>> 16) & (MIN_CAPACITY - 1)) == home) ids.add(id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,46 @@
+package Blockchain;
+
+import Blockchain.Transaction.DepositTx;
+import Blockchain.Transaction.NewAccountTx;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentedBlockStoreTest {
+    private static final int N_BLOCKS   = 300;
+    private static final int CACHE_SIZE = 4;
+
+    @Test
+    public void reopenedLedgerHasTheSameChainAndState() throws IOException {
+        Path dir    = Files.createTempDirectory("chain");
+        var  ledger = new Ledger(Ledger.Backend.PERSISTENT, new SegmentedBlockStore(dir, CACHE_SIZE), null);
+        for (int i = 0; i < N_BLOCKS; i++) {
+            ledger.apply(new Block(BlockId.from(1, i), Stream.of(new NewAccountTx(),
+                                                                 new DepositTx(Account.from(i + 1), 5),
+                                                                 new DepositTx(Account.from(-1), 5))));
+        }
+        ledger.close();
+
+        var reopened = new Ledger(Ledger.Backend.PERSISTENT, new SegmentedBlockStore(dir, CACHE_SIZE), null);
+        assertEquals(N_BLOCKS, reopened.chainSize());
+        assertEquals(N_BLOCKS - 1, reopened.lastSerialOf(1));
+        assertEquals(Integer.valueOf(5), reopened.get(Account.from(17)));
+
+        var newAccount = (NewAccountTx.Result) reopened.getStatus(new TxId(1, 16, 0)).orElseThrow();
+        assertEquals(17, newAccount.getNewAccount().getId());
+        assertTrue(reopened.getStatus(new TxId(1, 16, 1)).orElseThrow().isCommitted());
+        assertFalse(reopened.getStatus(new TxId(1, 16, 2)).orElseThrow().isCommitted());
+
+        reopened.apply(new Block(BlockId.from(1, N_BLOCKS), Stream.of(new NewAccountTx())));
+        reopened.close();
+        assertEquals(N_BLOCKS + 1,
+                     new Ledger(Ledger.Backend.PERSISTENT, new SegmentedBlockStore(dir, CACHE_SIZE), null).chainSize());
+    }
+}
@@ -0,0 +1,30 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SerialMarkTest {
+    @Test
+    public void restartResumesPastEveryOpenedBlock() throws IOException {
+        Path file    = Files.createTempDirectory("serials").resolve("serials");
+        var  builder = new BlockBuilder(1, 0, new SerialMark(file)::reserve, (txCount, byteSize) -> false);
+        for (int i = 0; i < 3000; i++) {
+            builder.seal(0);
+        }
+
+        // the chain store flushed none of them
+        int next = new SerialMark(file).next();
+        assertTrue(next > 3000, "resumed at " + next);
+
+        var restarted = new SerialMark(file);
+        assertEquals(next, restarted.next());
+        restarted.reserve(next);
+        assertTrue(new SerialMark(file).next() > next);
+    }
+}
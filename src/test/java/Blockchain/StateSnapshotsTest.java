@@ -0,0 +1,49 @@
+package Blockchain;
+
+import Blockchain.Transaction.DepositTx;
+import Blockchain.Transaction.NewAccountTx;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class StateSnapshotsTest {
+    private static final int N_BLOCKS = 250;
+    private static final int INTERVAL = 100;
+
+    @Test
+    public void restartResumesFromTheLatestSnapshot() throws IOException {
+        Path dir    = Files.createTempDirectory("ledger");
+        var  ledger = open(dir);
+        for (int i = 0; i < N_BLOCKS; i++) {
+            ledger.apply(new Block(BlockId.from(1, i), Stream.of(new NewAccountTx(),
+                                                                 new DepositTx(Account.from(i + 1), i))));
+        }
+        ledger.close();
+
+        var snapshots = new StateSnapshots(dir.resolve("snapshots"), INTERVAL);
+        assertEquals(200, snapshots.latest(0, N_BLOCKS, PersistentAccountMap::new).orElseThrow().getChainSize());
+        assertEquals(100, snapshots.latest(0, 199, PersistentAccountMap::new).orElseThrow().getChainSize());
+        assertFalse(snapshots.latest(0, 99, PersistentAccountMap::new).isPresent());
+        snapshots.close();
+
+        var reopened = open(dir);
+        assertEquals(N_BLOCKS, reopened.chainSize());
+        assertEquals(N_BLOCKS, reopened.getAccounts().size());
+        for (int i = 0; i < N_BLOCKS; i++) {
+            assertEquals(Integer.valueOf(i), reopened.get(Account.from(i + 1)));
+        }
+        reopened.close();
+    }
+
+    private static Ledger open(Path dir) {
+        return new Ledger(Ledger.Backend.TABLE,
+                          new SegmentedBlockStore(dir.resolve("chain"), 16),
+                          new StateSnapshots(dir.resolve("snapshots"), INTERVAL));
+    }
+}
@@ -0,0 +1,51 @@
+package Blockchain;
+
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import ServerCommunication.EncodedBlock;
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TxStatusIndexTest {
+    private static final int N_SERVERS = 4;
+    private static final int N_BLOCKS  = 5000; // per server, past a few resizes
+    private static final int N_TXS     = 70;   // more than a word of bits
+
+    // tx i of block (server, serial) commits unless i % 3 == 0, every 7th one creates an account
+    private static ArchivedBlock block(int serverId, int serialNum) {
+        var results = new Transaction.Result[N_TXS];
+        for (int i = 0; i < N_TXS; i++) {
+            results[i] = i % 7 == 0 ? NewAccountTx.Result.of(Account.from(serialNum * N_TXS + i))
+                                    : Transaction.Result.of(i % 3 != 0);
+        }
+        return ArchivedBlock.from(BlockId.from(serverId, serialNum), EncodedBlock.getDefaultInstance(), results);
+    }
+
+    @Test
+    public void everyAddedTxIsFound() {
+        var index = new TxStatusIndex();
+        for (int serial = 0; serial < N_BLOCKS; serial++) {
+            for (int server = 1; server <= N_SERVERS; server++) {
+                index.add(block(server, serial));
+            }
+        }
+
+        for (int serial = 0; serial < N_BLOCKS; serial++) {
+            for (int server = 1; server <= N_SERVERS; server++) {
+                for (int i = 0; i < N_TXS; i++) {
+                    Transaction.Result status = index.get(new TxId(server, serial, i));
+                    if (i % 7 == 0) {
+                        assertEquals(serial * N_TXS + i, ((NewAccountTx.Result) status).getNewAccount().getId());
+                    } else {
+                        assertEquals(i % 3 != 0, status.isCommitted());
+                    }
+                }
+                assertNull(index.get(new TxId(server, serial, N_TXS)));
+            }
+        }
+        assertNull(index.get(new TxId(N_SERVERS + 1, 0, 0)));
+        assertNull(index.get(new TxId(1, N_BLOCKS, 0)));
+    }
+}
@@ -0,0 +1,131 @@
+package Blockchain;
+
+import Blockchain.Batch.SizeBoundedBatching;
+import Blockchain.Transaction.NewAccountTx;
+import Blockchain.Transaction.Transaction;
+import org.apache.zookeeper.server.ServerConfig;
+import org.apache.zookeeper.server.ZooKeeperServerMain;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Three servers ordering through an embedded ZooKeeper, where {@link ZooKeeperClient} expects it.
+ */
+public class ZooKeeperOrderingTest {
+    private static final int N_SERVERS          = 3;
+    private static final int N_DEPOSITS         = 600;
+    private static final int POLLING_DELAY_MS   = 50;
+    private static final int POLLING_ITERATIONS = 20 * 20;
+
+    private static class EmbeddedZooKeeper extends ZooKeeperServerMain {
+        @Override
+        protected void shutdown() {
+            super.shutdown();
+        }
+    }
+
+    private static EmbeddedZooKeeper zooKeeper;
+
+    @BeforeClass
+    public static void startZooKeeper() throws Exception {
+        var config = new ServerConfig();
+        config.parse(new String[]{"2181", Files.createTempDirectory("zookeeper").toString()});
+
+        zooKeeper = new EmbeddedZooKeeper();
+        var thread = new Thread(() -> {
+            try {
+                zooKeeper.runFromConfig(config);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "zookeeper");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(1000);
+    }
+
+    @AfterClass
+    public static void stopZooKeeper() {
+        zooKeeper.shutdown();
+    }
+
+    @Test
+    public void sequentialZnodesGiveTheSameChainEverywhere() throws Exception {
+        runCluster(47000, null);
+    }
+
+    @Test
+    public void roundsGiveTheSameChainEverywhere() throws Exception {
+        runCluster(47100, Duration.ofMillis(30));
+    }
+
+    private static void runCluster(int basePort, Duration roundCloseTimeout) throws Exception {
+        var servers = new ArrayList<Server>();
+        try {
+            for (int id = 1; id <= N_SERVERS; id++) {
+                var builder = new ServerBuilder().setId(id)
+                                                 .setServerAddress(new InetSocketAddress("localhost", basePort + id))
+                                                 .setBatchingStrategy(new SizeBoundedBatching(Duration.ofMillis(5),
+                                                                                              1 << 10,
+                                                                                              1 << 20))
+                                                 .setFaultSetSize(1)
+                                                 .setStateTransfer(false);
+                if (roundCloseTimeout != null) builder.setRoundOrdering(roundCloseTimeout);
+                servers.add(builder.createServer().start());
+            }
+
+            var accounts = new ArrayList<Account>();
+            for (Server server : servers) {
+                accounts.add(((NewAccountTx.Result) pollStatus(server, server.createAccount())).getNewAccount());
+            }
+
+            List<TxId> deposits = new ArrayList<>();
+            for (int i = 0; i < N_DEPOSITS; i++) {
+                deposits.add(servers.get(i % N_SERVERS).addAmount(accounts.get(i % N_SERVERS), 1));
+            }
+            for (int i = 0; i < deposits.size(); i++) {
+                assertTrue(pollStatus(servers.get(i % N_SERVERS), deposits.get(i)).isCommitted());
+            }
+
+            // every server applies every deposit, once
+            for (Server server : servers) {
+                int total = 0;
+                for (int i = 0; i < POLLING_ITERATIONS && total < N_DEPOSITS; i++) {
+                    Thread.sleep(POLLING_DELAY_MS);
+                    total = 0;
+                    for (Account account : accounts) {
+                        total += server.getAmount(account);
+                    }
+                }
+                assertEquals(N_DEPOSITS, total);
+            }
+        } finally {
+            servers.forEach(Server::shutdown);
+            for (Server server : servers) {
+                server.awaitTermination(); // frees its port for the next test
+            }
+        }
+    }
+
+    private static Transaction.Result pollStatus(Server server, TxId txId) throws InterruptedException {
+        Transaction.Result status = server.getTxStatus(txId);
+        for (int i = 0; i < POLLING_ITERATIONS && status == null; i++) {
+            Thread.sleep(POLLING_DELAY_MS);
+            status = server.getTxStatus(txId);
+        }
+        assertNotNull(status, "no status for " + txId);
+        return status;
+    }
+}